@@ -0,0 +1,52 @@
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.net.*;
+
+/**
+ * Operand classifier microbenchmark.
+ * Compile two builds of src into class directories, then:
+ *   java bench/Classify.java out-before out-after
+ * and compare the ns/token lines.
+ */
+public class Classify {
+    private static final String[] tokens = {
+        "r1", "foo", "123", "0x1Fh", "1.5f", "'c'", "\"ab\"", "[tag]", "<seg>", "-42", "bar", "\"ab\"*4"
+    };
+
+    public static void main(String[] args) throws Throwable {
+        for (String dir : args) {
+            ClassLoader loader = new URLClassLoader(new URL[] { new java.io.File(dir + "/").toURI().toURL() }, null);
+            Class<?> nsasm = loader.loadClass("cn.ac.nya.nsasm.NSASM");
+            Object code = loader.loadClass("cn.ac.nya.nsasm.Util")
+                    .getMethod("getSegments", String.class).invoke(null, "var foo = 1\nvar bar = 2\n");
+            Object core = nsasm.getConstructor(int.class, int.class, int.class, String[][].class)
+                    .newInstance(64, 32, 16, code);
+            nsasm.getMethod("run").invoke(core); //Defines foo and bar
+
+            Method getRegister = nsasm.getDeclaredMethod("getRegister", String.class);
+            getRegister.setAccessible(true);
+            MethodHandle register = MethodHandles.lookup().unreflect(getRegister);
+            Class<?> wordType = loader.loadClass("cn.ac.nya.nsasm.NSASM$WordType");
+            Method verifyWord = nsasm.getDeclaredMethod("verifyWord", String.class, wordType);
+            verifyWord.setAccessible(true);
+            MethodHandle verify = MethodHandles.lookup().unreflect(verifyWord);
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            Object var = Enum.valueOf((Class) wordType, "VAR");
+
+            int count = 3_000_000;
+            Object sink = null; boolean flag = false; //Kept so the calls aren't dropped
+            double bestRegister = Double.MAX_VALUE, bestVerify = Double.MAX_VALUE;
+            for (int round = 0; round < 8; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) sink = register.invoke(core, tokens[i % tokens.length]);
+                long mid = System.nanoTime();
+                for (int i = 0; i < count; i++) flag ^= (boolean) verify.invoke(core, tokens[i % tokens.length], var);
+                long end = System.nanoTime();
+                bestRegister = Math.min(bestRegister, (mid - start) / (double) count);
+                bestVerify = Math.min(bestVerify, (end - mid) / (double) count);
+            }
+            System.out.printf("%s: getRegister %.1f ns/token, verifyWord(VAR) %.1f ns/token (best of 8)%n",
+                    dir, bestRegister, bestVerify);
+        }
+    }
+}
@@ -12,7 +12,7 @@ public class Launcher {
         Util.print("\n\n");
 
         if (args.length < 1) {
-            Util.print("Usage: nsasm [c/r/i/g] [FILE]\n\n");
+            Util.print("Usage: nsasm [c/r/t/v/i/g] [FILE]\n\n");
         } else {
             if (args.length == 3) {
                 if (args[0].equals("c")) {
@@ -22,9 +22,9 @@ public class Launcher {
                     return;
                 }
             } else if (args.length == 2) {
-                if (args[0].equals("r")) {
+                if (args[0].equals("r") || args[0].equals("t") || args[0].equals("v")) {
                     long now = System.nanoTime();
-                    Util.run(args[1]);
+                    Util.run(args[1], !args[0].equals("t")); //t keeps the plain interpreter
                     long end = System.nanoTime();
                     double ms = (double) (end - now) / 1e6;
                     Util.print("This script took " +
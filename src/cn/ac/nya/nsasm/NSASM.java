@@ -1,5 +1,10 @@
 package cn.ac.nya.nsasm;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
@@ -15,37 +20,147 @@ public class NSASM {
         CHAR, STR, INT, FLOAT, CODE, MAP, PAR, NUL
     }
 
+    private static final int TAG_OBJ = 0, TAG_INT = 1, TAG_CHAR = 2, TAG_FLOAT = 3;
+
     public class Register {
         public RegType type;
-        public Object data;
+        public Object data; // view of the value, kept for external callers
         public int strPtr = 0;
         public boolean readOnly;
 
+        private int tag = TAG_OBJ; // if not TAG_OBJ, bits holds the value and data may be null
+        private long bits;
+        private StringBuilder text; // STR being edited in place, data is its String once asked for
+
+        public Object getData() {
+            if (data == null) {
+                switch (tag) {
+                    case TAG_INT: data = (int) bits; break;
+                    case TAG_CHAR: data = (char) bits; break;
+                    case TAG_FLOAT: data = Float.intBitsToFloat((int) bits); break;
+                    default: if (text != null) data = text.toString(); break;
+                }
+            }
+            return data;
+        }
+
+        public void setData(Object value) {
+            data = value;
+            tag = TAG_OBJ;
+            text = null;
+        }
+
+        public void setInt(int value) {
+            data = null;
+            tag = TAG_INT;
+            bits = value;
+            text = null;
+        }
+
+        public void setChar(char value) {
+            data = null;
+            tag = TAG_CHAR;
+            bits = value;
+            text = null;
+        }
+
+        public void setFloat(float value) {
+            data = null;
+            tag = TAG_FLOAT;
+            bits = Float.floatToRawIntBits(value);
+            text = null;
+        }
+
+        private StringBuilder text() {
+            if (text == null) text = new StringBuilder((String) getData());
+            data = null;
+            return text;
+        }
+
+        private int length() {
+            return text != null ? text.length() : getData().toString().length();
+        }
+
+        private char charAt(int index) {
+            return text != null ? text.charAt(index) : ((String) getData()).charAt(index);
+        }
+
+        private int kind() {
+            if (tag != TAG_OBJ) return tag;
+            if (data instanceof Integer) return TAG_INT;
+            if (data instanceof Character) return TAG_CHAR;
+            if (data instanceof Float) return TAG_FLOAT;
+            return TAG_OBJ;
+        }
+
+        private long raw() {
+            if (tag != TAG_OBJ) return bits;
+            if (data instanceof Integer) return (int) data;
+            if (data instanceof Character) return (char) data;
+            return Float.floatToRawIntBits((float) data);
+        }
+
+        public int intValue() {
+            if (kind() == TAG_INT) return (int) raw();
+            return (int) getData();
+        }
+
+        private void box() {
+            getData();
+            tag = TAG_OBJ;
+            text = null; //data may be assigned directly from here on
+        }
+
         @Override
         public String toString() {
             switch (type) {
                 case CODE:
-                    return "(\n" + data.toString() + "\n)";
+                    return "(\n" + getData().toString() + "\n)";
                 default:
-                    return data.toString();
+                    switch (tag) {
+                        case TAG_INT: return Integer.toString((int) bits);
+                        case TAG_CHAR: return String.valueOf((char) bits);
+                        case TAG_FLOAT: return Float.toString(Float.intBitsToFloat((int) bits));
+                    }
+                    return getData().toString();
             }
         }
 
         @Override
         public boolean equals(Object obj) {
-            if (obj instanceof Register)
-                return type.equals(((Register) obj).type) && data.equals(((Register) obj).data);
+            if (obj instanceof Register) {
+                Register reg = (Register) obj;
+                if (!type.equals(reg.type)) return false;
+                int kind = kind();
+                if (kind == TAG_OBJ && reg.kind() == TAG_OBJ)
+                    return getData().equals(reg.getData());
+                if (kind != reg.kind()) return false;
+                if (kind == TAG_FLOAT)
+                    return Float.floatToIntBits(Float.intBitsToFloat((int) raw())) ==
+                           Float.floatToIntBits(Float.intBitsToFloat((int) reg.raw()));
+                return raw() == reg.raw();
+            }
             return false;
         }
 
         @Override
         public int hashCode() {
-            return data.hashCode();
+            switch (kind()) {
+                case TAG_INT:
+                case TAG_CHAR:
+                    return (int) raw();
+                case TAG_FLOAT:
+                    return Float.floatToIntBits(Float.intBitsToFloat((int) raw()));
+            }
+            return getData().hashCode();
         }
 
         public void copy(Register reg) {
             type = reg.type;
-            data = reg.data;
+            data = reg.text != null ? reg.getData() : reg.data;
+            text = null;
+            tag = reg.tag;
+            bits = reg.bits;
             strPtr = reg.strPtr;
             readOnly = reg.readOnly;
         }
@@ -63,27 +178,899 @@ public class NSASM {
     }
 
     public class Map extends LinkedHashMap<Register, Register> {
+        /* While every key is an INT, entries live in parallel arrays in insertion
+           order and are found through an open addressing table of entry index + 1
+           (0 empty, -1 removed). The first other key moves them into the
+           LinkedHashMap for good, as does any view of the entries; the operators
+           walk them through entries() instead. */
+        private int[] intKeys = new int[8];
+        private Register[] intValues = new Register[8];
+        private int[] intSlots = new int[16];
+        private int intEnd, intSize;
+        private boolean intMode = true;
+        private int version; // changes with every entry added, moved or removed, and on leaving int mode
+        private Cursor cursor;
+
         public Map() { super(); }
 
+        private Map(boolean intMode) {
+            super();
+            this.intMode = intMode;
+        }
+
+        /* The each/next position: an entry index in int mode, an iterator over the
+           entries otherwise. Both give up once the map changes under them, even
+           after the last entry was walked. */
+        private class Cursor {
+            private final int start = version;
+            private final Register intKey = new Register();
+            private Iterator<java.util.Map.Entry<Register, Register>> iterator;
+            private int index;
+            private Register key, value;
+
+            private Cursor() {
+                if (!intMode) iterator = entrySet().iterator();
+            }
+
+            private boolean next() {
+                if (version != start) throw new ConcurrentModificationException();
+                if (intMode) {
+                    while (index < intEnd && intValues[index] == null) index++;
+                    if (index >= intEnd) return false;
+                    intKey.type = RegType.INT;
+                    intKey.setInt(intKeys[index]);
+                    key = intKey;
+                    value = intValues[index++];
+                } else {
+                    if (!iterator.hasNext()) return false;
+                    java.util.Map.Entry<Register, Register> entry = iterator.next();
+                    key = entry.getKey();
+                    value = entry.getValue();
+                }
+                return true;
+            }
+        }
+
+        private boolean isIntKey(Object key) {
+            return key instanceof Register && ((Register) key).type == RegType.INT && ((Register) key).kind() == TAG_INT;
+        }
+
+        private int mix(int key) {
+            int hash = key * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        private int slotOf(int key) {
+            int mask = intSlots.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                int slot = intSlots[i];
+                if (slot == 0) return -1;
+                if (slot > 0 && intKeys[slot - 1] == key) return i;
+            }
+        }
+
+        private void rehash() {
+            int size = 8;
+            while (size < intSize << 1) size <<= 1;
+            int[] keys = size == intKeys.length ? intKeys : new int[size];
+            Register[] values = size == intValues.length ? intValues : new Register[size];
+            int end = 0;
+            for (int i = 0; i < intEnd; i++) { //Compacts in place when the size stays
+                if (intValues[i] == null) continue;
+                keys[end] = intKeys[i];
+                values[end] = intValues[i];
+                end += 1;
+            }
+            if (values == intValues) Arrays.fill(values, end, intEnd, null);
+            intKeys = keys; intValues = values;
+            if (intSlots.length == size << 1) Arrays.fill(intSlots, 0);
+            else intSlots = new int[size << 1];
+            for (intEnd = 0; intEnd < end; intEnd++)
+                place(keys[intEnd]);
+        }
+
+        private void place(int key) {
+            int mask = intSlots.length - 1;
+            int i = mix(key) & mask;
+            while (intSlots[i] > 0) i = (i + 1) & mask;
+            intSlots[i] = intEnd + 1;
+        }
+
+        private void inflate() {
+            if (!intMode) return;
+            intMode = false;
+            version += 1;
+            for (int i = 0; i < intEnd; i++) {
+                if (intValues[i] == null) continue;
+                Register key = new Register();
+                key.type = RegType.INT;
+                key.setData(intKeys[i]);
+                key.readOnly = true;
+                super.put(key, intValues[i]);
+            }
+            intKeys = null; intValues = null; intSlots = null;
+        }
+
+        /* Removes key and puts it last, like the put operator does, with one probe
+           in int mode. Other keys are stored as the shared copy from mapKey(). */
+        public boolean renew(Register key, Register value) {
+            if (intMode && isIntKey(key)) {
+                int k = (int) key.raw(), i = slotOf(k);
+                if (i >= 0) {
+                    intValues[intSlots[i] - 1] = null;
+                    version += 1;
+                    if (intEnd < intKeys.length) { //Same table slot, the entry moves last
+                        intKeys[intEnd] = k;
+                        intValues[intEnd] = value;
+                        intSlots[i] = ++intEnd;
+                        return true;
+                    }
+                    intSlots[i] = -1;
+                    intSize -= 1;
+                }
+                insert(k, value);
+                return true;
+            }
+            inflate();
+            super.remove(key);
+            super.put(mapKey(key), value);
+            version += 1;
+            return true;
+        }
+
+        private void insert(int key, Register value) {
+            if ((intEnd + 1) << 1 > intSlots.length || intEnd == intKeys.length) rehash();
+            intKeys[intEnd] = key;
+            intValues[intEnd] = value;
+            place(key);
+            intEnd += 1;
+            intSize += 1;
+            version += 1;
+        }
+
+        /* A snapshot of the entries that keeps int mode, so an operator may change
+           the map, even the same one, while walking it. */
+        Iterable<java.util.Map.Entry<Register, Register>> entries() {
+            if (!intMode) return new ArrayList<>(super.entrySet());
+            ArrayList<java.util.Map.Entry<Register, Register>> res = new ArrayList<>(intSize);
+            for (int i = 0; i < intEnd; i++) {
+                if (intValues[i] == null) continue;
+                Register key = new Register();
+                key.type = RegType.INT;
+                key.setInt(intKeys[i]);
+                key.readOnly = true;
+                res.add(new AbstractMap.SimpleImmutableEntry<>(key, intValues[i]));
+            }
+            return res;
+        }
+
+        public Map copy() {
+            Map res = new Map();
+            if (intMode) {
+                res.intKeys = intKeys.clone();
+                res.intValues = new Register[intValues.length];
+                for (int i = 0; i < intEnd; i++)
+                    if (intValues[i] != null) res.intValues[i] = new Register(intValues[i]);
+                res.intSlots = intSlots.clone();
+                res.intEnd = intEnd;
+                res.intSize = intSize;
+            } else {
+                for (java.util.Map.Entry<Register, Register> i : super.entrySet())
+                    res.put(i.getKey(), new Register(i.getValue())); //Keys are never changed
+            }
+            return res;
+        }
+
+        @Override
+        public int size() {
+            return intMode ? intSize : super.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public Register get(Object key) {
+            if (!intMode) return super.get(key);
+            if (!isIntKey(key)) return null;
+            int i = slotOf((int) ((Register) key).raw());
+            return i < 0 ? null : intValues[intSlots[i] - 1];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (!intMode) return super.containsKey(key);
+            return isIntKey(key) && slotOf((int) ((Register) key).raw()) >= 0;
+        }
+
+        @Override
+        public Register put(Register key, Register value) {
+            if (intMode && value != null && isIntKey(key)) {
+                int k = (int) key.raw(), i = slotOf(k);
+                if (i >= 0) {
+                    Register old = intValues[intSlots[i] - 1];
+                    intValues[intSlots[i] - 1] = value;
+                    return old;
+                }
+                insert(k, value);
+                return null;
+            }
+            inflate();
+            Register old = super.put(key, value);
+            if (old == null) version += 1;
+            return old;
+        }
+
+        @Override
+        public Register remove(Object key) {
+            if (!intMode) {
+                Register old = super.remove(key);
+                if (old != null) version += 1;
+                return old;
+            }
+            if (!isIntKey(key)) return null;
+            int i = slotOf((int) ((Register) key).raw());
+            if (i < 0) return null;
+            Register old = intValues[intSlots[i] - 1];
+            intValues[intSlots[i] - 1] = null;
+            intSlots[i] = -1;
+            intSize -= 1;
+            version += 1;
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            intKeys = new int[8];
+            intValues = new Register[8];
+            intSlots = new int[16];
+            intEnd = intSize = 0;
+            intMode = true;
+            version += 1;
+        }
+
+        private <T> T sized(int size, T res) { //Bumps version when the call added or removed a key
+            if (size() != size) version += 1;
+            return res;
+        }
+
+        @Override
+        public Set<Register> keySet() { inflate(); return super.keySet(); }
+        @Override
+        public Collection<Register> values() { inflate(); return super.values(); }
+        @Override
+        public Set<java.util.Map.Entry<Register, Register>> entrySet() { inflate(); return super.entrySet(); }
+        @Override
+        public boolean containsValue(Object value) { inflate(); return super.containsValue(value); }
+        @Override
+        public Register getOrDefault(Object key, Register value) { inflate(); return super.getOrDefault(key, value); }
+        @Override
+        public void putAll(java.util.Map<? extends Register, ? extends Register> map) { map.forEach(this::put); }
+        @Override
+        public Register putIfAbsent(Register key, Register value) { inflate(); return sized(super.size(), super.putIfAbsent(key, value)); }
+        @Override
+        public boolean remove(Object key, Object value) { inflate(); return sized(super.size(), super.remove(key, value)); }
+        @Override
+        public Register replace(Register key, Register value) { inflate(); return super.replace(key, value); }
+        @Override
+        public boolean replace(Register key, Register oldValue, Register newValue) { inflate(); return super.replace(key, oldValue, newValue); }
+        @Override
+        public void forEach(java.util.function.BiConsumer<? super Register, ? super Register> action) { inflate(); super.forEach(action); }
+        @Override
+        public void replaceAll(java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { inflate(); super.replaceAll(function); }
+        @Override
+        public Register computeIfAbsent(Register key, java.util.function.Function<? super Register, ? extends Register> function) { inflate(); return sized(super.size(), super.computeIfAbsent(key, function)); }
+        @Override
+        public Register computeIfPresent(Register key, java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { inflate(); return sized(super.size(), super.computeIfPresent(key, function)); }
+        @Override
+        public Register compute(Register key, java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { inflate(); return sized(super.size(), super.compute(key, function)); }
+        @Override
+        public Register merge(Register key, Register value, java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { inflate(); return sized(super.size(), super.merge(key, value, function)); }
+        @Override
+        public Object clone() { inflate(); return super.clone(); }
+        @Override
+        public boolean equals(Object obj) { inflate(); return super.equals(obj); }
+        @Override
+        public int hashCode() { inflate(); return super.hashCode(); }
+
         @Override
         public String toString() {
             String str = "M(\n";
-            for (Register key : keySet()) {
-                if (get(key) == null) continue;
-                str = str.concat(key.toString() + "->" + get(key).toString() + "\n");
+            if (intMode) {
+                for (int i = 0; i < intEnd; i++) {
+                    if (intValues[i] == null) continue;
+                    str = str.concat(Integer.toString(intKeys[i]) + "->" + intValues[i].toString() + "\n");
+                }
+            } else {
+                for (Register key : keySet()) {
+                    if (get(key) == null) continue;
+                    str = str.concat(key.toString() + "->" + get(key).toString() + "\n");
+                }
+            }
+            str += ")";
+
+            return str;
+        }
+    }
+
+    /* Keys sorted by value: numbers (INT, CHAR, FLOAT) first, then STR, with the
+       type breaking ties so it agrees with Register.equals. Other keys are refused. */
+    @SuppressWarnings("serial")
+    public class OrderedMap extends Map {
+        private final TreeMap<Register, Register> tree = new TreeMap<>(keyOrder);
+
+        public OrderedMap() { super(false); }
+
+        public OrderedMap(java.util.Map<Register, Register> map) {
+            super(false);
+            for (java.util.Map.Entry<Register, Register> i : map instanceof Map ? ((Map) map).entries() : map.entrySet())
+                if (isOrderable(i.getKey())) tree.put(i.getKey(), i.getValue());
+        }
+
+        public NavigableMap<Register, Register> navigable() {
+            return tree;
+        }
+
+        @Override
+        public boolean renew(Register key, Register value) {
+            if (!isOrderable(key)) return false;
+            if (tree.replace(key, value) == null) {
+                tree.put(mapKey(key), value);
+                super.version += 1;
+            }
+            return true;
+        }
+
+        @Override
+        Iterable<java.util.Map.Entry<Register, Register>> entries() {
+            return new ArrayList<>(tree.entrySet());
+        }
+
+        @Override
+        public Map copy() {
+            OrderedMap res = new OrderedMap();
+            for (java.util.Map.Entry<Register, Register> i : tree.entrySet())
+                res.tree.put(i.getKey(), new Register(i.getValue()));
+            return res;
+        }
+
+        @Override
+        public int size() { return tree.size(); }
+        @Override
+        public boolean isEmpty() { return tree.isEmpty(); }
+        @Override
+        public Register get(Object key) { return isOrderable(key) ? tree.get(key) : null; }
+        @Override
+        public boolean containsKey(Object key) { return isOrderable(key) && tree.containsKey(key); }
+        private Register orderable(Register key) {
+            if (!isOrderable(key)) throw new ClassCastException("Key can't be ordered: " + key);
+            return key;
+        }
+
+        @Override
+        public Register put(Register key, Register value) {
+            Register old = tree.put(orderable(key), value);
+            if (old == null) super.version += 1;
+            return old;
+        }
+        @Override
+        public Register remove(Object key) {
+            Register old = isOrderable(key) ? tree.remove(key) : null;
+            if (old != null) super.version += 1;
+            return old;
+        }
+        @Override
+        public void clear() {
+            tree.clear();
+            super.version += 1;
+        }
+        @Override
+        public Set<Register> keySet() { return tree.keySet(); }
+        @Override
+        public Collection<Register> values() { return tree.values(); }
+        @Override
+        public Set<java.util.Map.Entry<Register, Register>> entrySet() { return tree.entrySet(); }
+        @Override
+        public boolean containsValue(Object value) { return tree.containsValue(value); }
+        @Override
+        public Register getOrDefault(Object key, Register value) { return containsKey(key) ? tree.get(key) : value; }
+        @Override
+        public void putAll(java.util.Map<? extends Register, ? extends Register> map) { map.forEach(this::put); }
+        @Override
+        public Register putIfAbsent(Register key, Register value) { return super.sized(tree.size(), tree.putIfAbsent(orderable(key), value)); }
+        @Override
+        public boolean remove(Object key, Object value) { return isOrderable(key) && super.sized(tree.size(), tree.remove(key, value)); }
+        @Override
+        public Register replace(Register key, Register value) { return tree.replace(key, value); }
+        @Override
+        public boolean replace(Register key, Register oldValue, Register newValue) { return tree.replace(key, oldValue, newValue); }
+        @Override
+        public void forEach(java.util.function.BiConsumer<? super Register, ? super Register> action) { tree.forEach(action); }
+        @Override
+        public void replaceAll(java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { tree.replaceAll(function); }
+        @Override
+        public Register computeIfAbsent(Register key, java.util.function.Function<? super Register, ? extends Register> function) { return super.sized(tree.size(), tree.computeIfAbsent(orderable(key), function)); }
+        @Override
+        public Register computeIfPresent(Register key, java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { return isOrderable(key) ? super.sized(tree.size(), tree.computeIfPresent(key, function)) : null; }
+        @Override
+        public Register compute(Register key, java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { return super.sized(tree.size(), tree.compute(orderable(key), function)); }
+        @Override
+        public Register merge(Register key, Register value, java.util.function.BiFunction<? super Register, ? super Register, ? extends Register> function) { return super.sized(tree.size(), tree.merge(orderable(key), value, function)); }
+        @Override
+        public Object clone() { return new OrderedMap(tree); }
+        @Override
+        public boolean equals(Object obj) { return tree.equals(obj); }
+        @Override
+        public int hashCode() { return tree.hashCode(); }
+
+        @Override
+        public String toString() {
+            String str = "M(\n";
+            for (java.util.Map.Entry<Register, Register> i : tree.entrySet()) {
+                if (i.getValue() == null) continue;
+                str = str.concat(i.getKey().toString() + "->" + i.getValue().toString() + "\n");
+            }
+            str += ")";
+
+            return str;
+        }
+    }
+
+    private static boolean isOrderable(Object key) {
+        if (!(key instanceof Register)) return false;
+        switch (((Register) key).type) {
+            case INT: case CHAR: case FLOAT:
+                return ((Register) key).kind() != TAG_OBJ;
+            case STR:
+                return ((Register) key).getData() instanceof String;
+        }
+        return false;
+    }
+
+    private static final Comparator<Register> keyOrder = NSASM::compareKeys;
+
+    private static int compareKeys(Register a, Register b) {
+        boolean na = a.type != RegType.STR, nb = b.type != RegType.STR;
+        if (na != nb) return na ? -1 : 1;
+        int res = na ? Double.compare(keyValue(a), keyValue(b)) :
+                       ((String) a.getData()).compareTo((String) b.getData());
+        return res != 0 ? res : a.type.compareTo(b.type);
+    }
+
+    private static double keyValue(Register reg) {
+        if (reg.kind() == TAG_FLOAT) return Float.intBitsToFloat((int) reg.raw());
+        return reg.raw();
+    }
+
+    public interface Operator {
+        Result run(Register dst, Register src, Register ext);
+    }
+
+    public interface Param {
+        Register mod(Register reg); // if reg is null, it's read, else write
+    }
+
+    protected enum OperandType {
+        REG, VAR, PAR, NAME, CONST, MAP, IMM
+    }
+
+    protected static class Operand {
+        public final OperandType type;
+        public final String word;
+        public int index; // VAR: -1 until the name is defined, then its heap slot
+        public final Register value; // read-only, shared by every execution
+
+        public Operand(OperandType type, String word, int index) {
+            this(type, word, index, null);
+        }
+
+        public Operand(OperandType type, String word, int index, Register value) {
+            this.type = type;
+            this.word = word;
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    protected static class Instruction {
+        public final String line;
+        public final String operator;
+        public final int opcode;
+        public final Operand dst, src, ext;
+        public final Result result; // not null if no operator is needed
+        private final Kernel[] kernels; // indexed by kernelKey, null entries go the generic way
+
+        public Instruction(String line, String operator, int opcode, Operand dst, Operand src, Operand ext, Result result) {
+            this.line = line;
+            this.operator = operator;
+            this.opcode = opcode;
+            this.dst = dst;
+            this.src = src;
+            this.ext = ext;
+            this.result = result;
+            this.kernels = opcode >= 0 && opcode < calcKernels.length ? calcKernels[opcode] : null;
+        }
+    }
+
+    /* Text waits in the buffer until it is full, a newline comes (if flushLine),
+       or flushTime has passed since the first text after the last flush. The
+       time flush runs on a daemon thread, so output shows up while the script
+       keeps computing without printing. */
+    public static class Output {
+
+        private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "NSASM output");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final Writer writer;
+        private final StringBuilder buffer = new StringBuilder();
+        private boolean flushLine = false; // flush whenever a newline is printed
+        private int flushSize = 8192; // chars held before a flush
+        private long flushTime = 100; // millis text may wait, negative waits for the other rules
+        private boolean pending; // a time flush is scheduled
+
+        public Output(Writer writer) {
+            this.writer = writer;
+        }
+
+        public Output(OutputStream stream) {
+            this(new OutputStreamWriter(stream));
+        }
+
+        public Output(PrintStream stream) { //Keeps the encoding the stream already uses
+            this(new Writer() {
+                @Override
+                public void write(char[] chars, int off, int len) { stream.print(new String(chars, off, len)); }
+                @Override
+                public void write(String str, int off, int len) { stream.append(str, off, off + len); }
+                @Override
+                public void flush() { stream.flush(); }
+                @Override
+                public void close() { stream.close(); }
+            });
+        }
+
+        public Output(WritableByteChannel channel) {
+            this(Channels.newWriter(channel, Charset.defaultCharset().newEncoder(), -1));
+        }
+
+        public Output setFlush(boolean line, int size, long millis) {
+            flushLine = line;
+            flushSize = size;
+            flushTime = millis;
+            return this;
+        }
+
+        public synchronized void print(Object value) {
+            int from = buffer.length();
+            buffer.append(value);
+            if (buffer.length() >= flushSize || flushTime == 0 || (flushLine && buffer.indexOf("\n", from) >= 0)) {
+                flush();
+            } else if (!pending && flushTime > 0) {
+                pending = true;
+                flusher.schedule(this::flushLater, flushTime, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void flushLater() {
+            pending = false;
+            flush();
+        }
+
+        public synchronized void flush() {
+            try {
+                if (buffer.length() > 0) writer.append(buffer);
+                writer.flush();
+            } catch (IOException e) {
+                //Same as System.out, a broken sink does not stop the script
+            }
+            buffer.setLength(0);
+        }
+    }
+
+    public static class Input {
+
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private final StringBuilder word = new StringBuilder(); // reused for text crossing a refill
+        private int pos, end;
+
+        public Input(Reader reader) {
+            this.reader = reader;
+        }
+
+        public Input(InputStream stream) {
+            this(new InputStreamReader(stream));
+        }
+
+        public Input(ReadableByteChannel channel) {
+            this(Channels.newReader(channel, Charset.defaultCharset().newDecoder(), -1));
+        }
+
+        private boolean fill() {
+            if (pos < end) return true;
+            pos = end = 0;
+            try {
+                int count = reader.read(buffer, 0, buffer.length);
+                if (count > 0) end = count;
+            } catch (IOException e) {
+                //Treated as the end of input
+            }
+            return pos < end;
+        }
+
+        public String readLine() {
+            if (!fill()) return null;
+            int from = pos;
+            while (pos < end && buffer[pos] != '\n') pos++;
+            if (pos < end) { //Whole line already in the buffer
+                int to = pos++;
+                if (to > from && buffer[to - 1] == '\r') to--;
+                return new String(buffer, from, to - from);
+            }
+            word.setLength(0);
+            word.append(buffer, from, pos - from);
+            while (fill()) {
+                from = pos;
+                while (pos < end && buffer[pos] != '\n') pos++;
+                word.append(buffer, from, pos - from);
+                if (pos < end) {
+                    pos++;
+                    break;
+                }
+            }
+            int length = word.length();
+            if (length > 0 && word.charAt(length - 1) == '\r') word.setLength(length - 1);
+            return word.toString();
+        }
+
+        public String readToken() {
+            do {
+                if (!fill()) return null;
+                while (pos < end && Character.isWhitespace(buffer[pos])) pos++;
+            } while (pos == end);
+            word.setLength(0);
+            while (fill()) {
+                int from = pos;
+                while (pos < end && !Character.isWhitespace(buffer[pos])) pos++;
+                word.append(buffer, from, pos - from);
+                if (pos < end) break;
+            }
+            return word.toString();
+        }
+    }
+
+    /* A numbered in/out port bound to a file. Reads go through a window of the
+       file mapped into memory, moved along once the position leaves it; writes
+       are buffered and reach the file on flush, seek and close. */
+    public static class Port {
+
+        private static final int WINDOW = 1 << 26, BUFFER = 1 << 16;
+
+        private final FileChannel channel;
+        private final Charset charset = Charset.defaultCharset();
+        private MappedByteBuffer window; // read ports
+        private ByteBuffer buffer; // write ports, base is the file offset of its first byte
+        private long base, position;
+        private byte[] line = new byte[256];
+
+        public Port(String path, String mode) throws IOException {
+            switch (mode) {
+                case "r":
+                    channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+                    break;
+                case "w":
+                    channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                    break;
+                case "a":
+                    channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    base = channel.size();
+                    break;
+                default:
+                    throw new IOException("Unknown port mode " + mode);
+            }
+            if (!mode.equals("r")) buffer = ByteBuffer.allocate(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private boolean ensure(int count) throws IOException {
+            if (window != null && position >= base && position + count <= base + window.limit()) return true;
+            long size = channel.size();
+            if (position + count > size) return false;
+            base = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW, size - base));
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            if (!ensure(1)) return null;
+            int length = 0;
+            while (ensure(1)) {
+                int from = (int) (position - base), limit = window.limit(), at = from;
+                while (at < limit && window.get(at) != '\n') at++;
+                int count = at - from;
+                if (length + count > line.length) line = Arrays.copyOf(line, Math.max(line.length << 1, length + count));
+                window.position(from);
+                window.get(line, length, count);
+                length += count;
+                position += count;
+                if (at < limit) {
+                    position += 1;
+                    break;
+                }
+            }
+            if (length > 0 && line[length - 1] == '\r') length -= 1;
+            return new String(line, 0, length, charset);
+        }
+
+        public Object read(RegType type) throws IOException {
+            if (buffer != null) throw new IOException("Port is not readable");
+            Object value;
+            switch (type) {
+                case STR:
+                    return readLine();
+                case CHAR:
+                    if (!ensure(1)) return null;
+                    value = (char) (window.get((int) (position - base)) & 0xFF);
+                    position += 1;
+                    return value;
+                case INT:
+                    if (!ensure(4)) return null;
+                    value = window.getInt((int) (position - base));
+                    position += 4;
+                    return value;
+                case FLOAT:
+                    if (!ensure(4)) return null;
+                    value = window.getFloat((int) (position - base));
+                    position += 4;
+                    return value;
+                default:
+                    throw new IOException("Port can not read " + type);
+            }
+        }
+
+        public void write(Object value) throws IOException {
+            if (buffer == null) throw new IOException("Port is not writable");
+            if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(charset);
+                if (bytes.length > buffer.remaining()) flush();
+                if (bytes.length > buffer.remaining()) {
+                    ByteBuffer src = ByteBuffer.wrap(bytes);
+                    while (src.hasRemaining()) base += channel.write(src, base);
+                } else buffer.put(bytes);
+                return;
+            }
+            if (buffer.remaining() < 4) flush();
+            if (value instanceof Character) buffer.put((byte) (char) value);
+            else if (value instanceof Integer) buffer.putInt((int) value);
+            else if (value instanceof Float) buffer.putFloat((float) value);
+            else throw new IOException("Port can not write " + value);
+        }
+
+        public long tell() {
+            return buffer != null ? base + buffer.position() : position;
+        }
+
+        public void seek(long offset) throws IOException {
+            if (buffer != null) {
+                flush();
+                base = offset;
+            } else position = offset;
+        }
+
+        public void flush() throws IOException {
+            if (buffer == null || buffer.position() == 0) return;
+            buffer.flip();
+            while (buffer.hasRemaining()) base += channel.write(buffer, base);
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            flush();
+            window = null;
+            channel.close();
+        }
+    }
+
+    /* Programs run by eval, kept by code text: the parsed segments, and the core
+       built from them so running the same CODE again skips parsing and decoding.
+       A core is taken out while it runs, so a recursive eval of the same text
+       builds a core of its own from the parsed segments. */
+    public static class CodeCache {
+
+        private static class Entry {
+            private String[][] code;
+            private NSASM core; // null while taken, or if the last run could not be reused
+        }
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<String, Entry> entries; // least recently used first
+        private long hits, misses;
+
+        public CodeCache(int size) {
+            entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(java.util.Map.Entry<String, Entry> eldest) {
+                    return size() > size;
+                }
+            };
+        }
+
+        private Entry take(String text) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(text);
+                if (entry == null) {
+                    misses += 1;
+                    return null;
+                }
+                hits += 1;
+                Entry res = new Entry();
+                res.code = entry.code;
+                res.core = entry.core;
+                entry.core = null;
+                return res;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void give(String text, String[][] code, NSASM core) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(text);
+                if (entry == null) {
+                    entry = new Entry();
+                    entries.put(text, entry);
+                }
+                entry.code = code;
+                if (core != null) entry.core = core;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long hits() {
+            lock.lock();
+            try {
+                return hits;
+            } finally {
+                lock.unlock();
             }
-            str += ")";
+        }
 
-            return str;
+        public long misses() {
+            lock.lock();
+            try {
+                return misses;
+            } finally {
+                lock.unlock();
+            }
         }
-    }
 
-    public interface Operator {
-        Result run(Register dst, Register src, Register ext);
-    }
+        public int size() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
 
-    public interface Param {
-        Register mod(Register reg); // if reg is null, it's read, else write
+        public void clear() {
+            lock.lock();
+            try {
+                entries.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     protected class SafePool<T> extends ArrayList<T> {
@@ -131,25 +1118,271 @@ public class NSASM {
 
     }
 
-    private LinkedHashMap<String, Register> heapManager;
-    private LinkedList<Register> stackManager;
+    protected static final int
+        OP_MOV = 0, OP_PUSH = 1, OP_POP = 2, OP_IN = 3, OP_OUT = 4, OP_PRT = 5,
+        OP_ADD = 6, OP_INC = 7, OP_SUB = 8, OP_DEC = 9, OP_MUL = 10, OP_DIV = 11,
+        OP_MOD = 12, OP_AND = 13, OP_OR = 14, OP_XOR = 15, OP_SHL = 16, OP_SHR = 17,
+        OP_CMP = 18, OP_JMP = 19, OP_JNZ = 20, OP_NOP = 21, OP_USE = 22, OP_PUT = 23,
+        OP_GET = 24, OP_CAT = 25, OP_DOG = 26, OP_JZ = 27, OP_JG = 28, OP_JL = 29,
+        OP_LOOP = 30, OP_NEXT = 31, OP_CLS = 32;
+
+    private static final String[] opNames = {
+        "mov", "push", "pop", "in", "out", "prt", "add", "inc", "sub",
+        "dec", "mul", "div", "mod", "and", "or", "xor", "shl", "shr",
+        "cmp", "jmp", "jnz", "nop", "use", "put", "get", "cat", "dog",
+        "jz", "jg", "jl", "loop", "next", "cls"
+    };
+
+    private interface Kernel {
+        void run(Register dst, Register src);
+    }
+
+    private static final Kernel[][] calcKernels = new Kernel[opNames.length][];
+
+    static {
+        char[] ops = new char[opNames.length];
+        ops[OP_ADD] = ops[OP_INC] = '+'; ops[OP_SUB] = ops[OP_DEC] = ops[OP_CMP] = '-';
+        ops[OP_MUL] = '*'; ops[OP_DIV] = '/'; ops[OP_MOD] = '%';
+        ops[OP_AND] = '&'; ops[OP_OR] = '|'; ops[OP_XOR] = '^';
+        ops[OP_SHL] = '<'; ops[OP_SHR] = '>';
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == 0) continue;
+            Kernel[] row = new Kernel[RegType.values().length << 4];
+            row[kernelKey(RegType.INT, TAG_INT, TAG_INT)] = intKernel(ops[i]);
+            row[kernelKey(RegType.CHAR, TAG_CHAR, TAG_CHAR)] = intKernel(ops[i]); //char op char gives int
+            row[kernelKey(RegType.FLOAT, TAG_FLOAT, TAG_FLOAT)] = floatKernel(ops[i]);
+            row[kernelKey(RegType.FLOAT, TAG_FLOAT, TAG_INT)] = floatKernel(ops[i]);
+            calcKernels[i] = row;
+        }
+    }
+
+    private static int kernelKey(RegType type, int dstKind, int srcKind) {
+        return (type.ordinal() << 4) | (dstKind << 2) | srcKind;
+    }
+
+    private static Kernel intKernel(char type) {
+        switch (type) {
+            case '+': return (dst, src) -> dst.setInt((int) dst.raw() + (int) src.raw());
+            case '-': return (dst, src) -> dst.setInt((int) dst.raw() - (int) src.raw());
+            case '*': return (dst, src) -> dst.setInt((int) dst.raw() * (int) src.raw());
+            case '/': return (dst, src) -> dst.setInt((int) dst.raw() / (int) src.raw());
+            case '%': return (dst, src) -> dst.setInt((int) dst.raw() % (int) src.raw());
+            case '&': return (dst, src) -> dst.setInt((int) dst.raw() & (int) src.raw());
+            case '|': return (dst, src) -> dst.setInt((int) dst.raw() | (int) src.raw());
+            case '^': return (dst, src) -> dst.setInt((int) dst.raw() ^ (int) src.raw());
+            case '<': return (dst, src) -> dst.setInt((int) dst.raw() << (int) src.raw());
+            case '>': return (dst, src) -> dst.setInt((int) dst.raw() >> (int) src.raw());
+        }
+        return null;
+    }
+
+    private static float floatBits(Register reg) {
+        if (reg.kind() == TAG_INT) return (int) reg.raw();
+        return Float.intBitsToFloat((int) reg.raw());
+    }
+
+    private static Kernel floatKernel(char type) {
+        switch (type) {
+            case '+': return (dst, src) -> dst.setFloat(floatBits(dst) + floatBits(src));
+            case '-': return (dst, src) -> dst.setFloat(floatBits(dst) - floatBits(src));
+            case '*': return (dst, src) -> dst.setFloat(floatBits(dst) * floatBits(src));
+            case '/': return (dst, src) -> dst.setFloat(floatBits(dst) / floatBits(src));
+        }
+        return null;
+    }
+
+    @SuppressWarnings("serial")
+    protected class FuncList extends LinkedHashMap<String, Operator> {
+
+        private final HashMap<String, Integer> ids = new HashMap<>();
+        private Operator[] table = new Operator[opNames.length];
+        private boolean[] natives = new boolean[opNames.length];
+        private int nativeLevel = 0;
+
+        public FuncList() {
+            super();
+            for (String name : opNames) id(name);
+        }
+
+        public int id(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = ids.size();
+                ids.put(name, id);
+                if (id >= table.length) {
+                    table = Arrays.copyOf(table, id * 2);
+                    natives = Arrays.copyOf(natives, id * 2);
+                }
+            }
+            return id;
+        }
+
+        public Operator func(int id) {
+            return table[id];
+        }
+
+        public boolean isNative(int id) {
+            return natives[id];
+        }
+
+        @Override
+        public Operator put(String name, Operator operator) {
+            int id = id(name);
+            table[id] = operator;
+            natives[id] = nativeLevel > 0;
+            return super.put(name, operator);
+        }
+
+        @Override
+        public void putAll(java.util.Map<? extends String, ? extends Operator> map) {
+            for (java.util.Map.Entry<? extends String, ? extends Operator> i : map.entrySet())
+                put(i.getKey(), i.getValue());
+        }
+
+        @Override
+        public Operator putIfAbsent(String name, Operator operator) {
+            Operator old = get(name);
+            if (old == null) put(name, operator);
+            return old;
+        }
+
+        @Override
+        public Operator replace(String name, Operator operator) {
+            if (!containsKey(name)) return null;
+            return put(name, operator);
+        }
+
+        @Override
+        public boolean replace(String name, Operator oldOperator, Operator newOperator) {
+            if (!containsKey(name) || !Objects.equals(get(name), oldOperator)) return false;
+            put(name, newOperator);
+            return true;
+        }
+
+        @Override
+        public Operator remove(Object name) {
+            if (ids.containsKey(name)) {
+                table[ids.get(name)] = null;
+                natives[ids.get(name)] = false;
+            }
+            return super.remove(name);
+        }
+
+        @Override
+        public boolean remove(Object name, Object operator) {
+            if (!containsKey(name) || !Objects.equals(get(name), operator)) return false;
+            remove(name);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(table, null);
+            Arrays.fill(natives, false);
+            super.clear();
+        }
+
+    }
+
+    private HashMap<String, Integer> heapSlots; // variable names, bound to a slot when first defined
+    private Register[] heapManager; // indexed by slot, null until defined
+    private int heapUsed;
+    private boolean heapParams;
+    private Register[] stackManager; // preallocated slots, values are copied in and out
+    private int stackTop;
     private int heapSize, stackSize, regCnt;
     protected Register useReg;
     protected Register[] regGroup;
     private Register stateReg;
+    private Register oneReg;
+    private Register tmpReg;
     private Register prevDstReg;
 
+    private boolean literalCache = true;
+    public void setLiteralCache(boolean enable) {
+        literalCache = enable;
+    }
+
+    private boolean bytecode = true; // the tiered engine, false runs every line through execute()
+    public void setBytecode(boolean enable) {
+        bytecode = enable;
+    }
+
     private Register argReg;
     public void setArgument(Register reg) {
         argReg = new Register(reg);
     }
 
-    private LinkedList<Integer> backupReg;
+    private Output out, debug; // debug takes port 0xFF, shared with every child core
+    private Input input;
+    private HashMap<Integer, Port> ports; // files bound by opn, shared with every child core
+    private boolean topLevel = true; // children leave flushing to the core that started them
+    public void setOutput(Output output) {
+        if (debug == out) debug = output;
+        out = output;
+        codeCache.clear();
+    }
+
+    public void setDebugOutput(Output output) {
+        debug = output;
+        codeCache.clear();
+    }
+
+    public Output getOutput() {
+        return out;
+    }
+
+    public void setInput(Input input) {
+        this.input = input;
+        codeCache.clear();
+    }
+
+    public void flush() {
+        out.flush();
+        if (debug != out) debug.flush();
+        for (Port port : ports.values()) {
+            try {
+                port.flush();
+            } catch (IOException e) {
+                //Reported again by the next write or cls on the port
+            }
+        }
+    }
+
+    private int[] frameSeg, frameCnt; // return addresses of call, grown on demand up to callLimit
+    private int frameTop, callLimit = 65536;
+    public void setCallLimit(int limit) {
+        callLimit = limit;
+    }
     private int progSeg, tmpSeg;
     private int progCnt, tmpCnt;
 
-    protected LinkedHashMap<String, Operator> funcList;
-    private LinkedHashMap<String, String[]> code;
+    protected FuncList funcList;
+    private LinkedHashMap<String, Instruction[]> code;
+    private HashMap<String, Integer> segTable;
+    private HashMap<String, int[]> tagTable;
+    private HashMap<String, Map> mapTemplates;
+    private HashMap<Register, Register> mapKeys; // read-only keys shared by every map
+    private CodeCache codeCache; // shared by every child core
+    private boolean reusable = true; // false once ld changes the code
+
+    private static final int MAP_KEYS = 4096, CODE_CACHE = 64;
+
+    public CodeCache getCodeCache() {
+        return codeCache;
+    }
+
+    private Register mapKey(Register reg) {
+        boolean pooled = reg.type == RegType.INT || reg.type == RegType.CHAR || reg.type == RegType.STR;
+        Register key = pooled ? mapKeys.get(reg) : null;
+        if (key != null) return key;
+        key = new Register(reg);
+        key.readOnly = true;
+        if (pooled && mapKeys.size() < MAP_KEYS) mapKeys.put(key, key);
+        return key;
+    }
+    private String[] segName;
+    private Instruction[][] segCode;
 
     protected LinkedHashMap<String, Param> paramList;
 
@@ -176,7 +1409,7 @@ public class NSASM {
                 return verifyBound(var, '\'', '\'');
             case STR:
                 return verifyBound(var, '\"', '\"') ||
-                       (var.split("\"").length > 2 && var.contains("*"));
+                       (var.indexOf('*') >= 0 && var.split("\"").length > 2);
             case INT:
                 if (var.endsWith("f") || var.endsWith("F"))
                     return var.startsWith("0x") || var.startsWith("0X");
@@ -208,36 +1441,59 @@ public class NSASM {
             case PAR:
                 return paramList.containsKey(var);
             case VAR:
-                return !verifyWord(var, WordType.REG) && !verifyWord(var, WordType.CHAR) &&
-                    !verifyWord(var, WordType.STR) && !verifyWord(var, WordType.INT) &&
-                    !verifyWord(var, WordType.FLOAT) && !verifyWord(var, WordType.TAG) &&
-                    !verifyWord(var, WordType.SEG) && !verifyWord(var, WordType.CODE) &&
-                    !verifyWord(var, WordType.MAP) && !verifyWord(var, WordType.PAR);
+                return classify(var) == WordType.VAR;
         }
         return false;
     }
 
+    /* Same answers as the verifyWord chain, in the order getRegister tries them */
+    private WordType classify(String var) {
+        if (paramList.containsKey(var)) return WordType.PAR;
+        char head = var.charAt(0), tail = var.charAt(var.length() - 1);
+        if (head == 'r' || head == 'R') return WordType.REG;
+        if (head == '\'' && tail == '\'') return WordType.CHAR;
+        if (head == '\"' && tail == '\"') return WordType.STR;
+        if (var.indexOf('*') >= 0 && var.split("\"").length > 2) return WordType.STR;
+        boolean sign = (head >= '0' && head <= '9') || head == '-' || head == '+';
+        if (tail == 'f' || tail == 'F') {
+            if (var.startsWith("0x") || var.startsWith("0X")) return WordType.INT;
+            if (sign) return WordType.FLOAT;
+        } else if (var.indexOf('.') < 0) {
+            if (sign || tail == 'h' || tail == 'H') return WordType.INT;
+        } else if (sign) return WordType.FLOAT;
+        if (head == '[' && tail == ']') return WordType.TAG;
+        if (head == '<' && tail == '>') return WordType.SEG;
+        if (head == '(' && tail == ')') return WordType.CODE;
+        if ((head == 'm' || head == 'M') && var.length() > 1 && var.charAt(1) == '(' && tail == ')')
+            return WordType.MAP;
+        return WordType.VAR;
+    }
+
     private Register getRegister(String var) {
         if (var.length() == 0) return null;
-        if (verifyWord(var, WordType.PAR)) {
+        return getRegister(var, classify(var));
+    }
+
+    private Register getRegister(String var, WordType type) {
+        if (type == WordType.PAR) {
             Register register = new Register();
             register.type = RegType.PAR;
             register.readOnly = true;
-            register.data = var;
+            register.setData(var);
             return register;
-        } else if (verifyWord(var, WordType.REG)) {
+        } else if (type == WordType.REG) {
             //Register
             int index = Integer.valueOf(var.substring(1));
             if (index < 0 || index >= regGroup.length) return null;
             return regGroup[index];
-        } else if (verifyWord(var, WordType.VAR)) {
+        } else if (type == WordType.VAR) {
             //Variable
-            if (!heapManager.containsKey(var)) return null;
-            return heapManager.get(var);
+            Integer slot = heapSlots.get(var);
+            return slot == null ? null : heapManager[slot];
         } else {
             //Immediate number
             Register register = new Register();
-            if (verifyWord(var, WordType.CHAR)) {
+            if (type == WordType.CHAR) {
                 if (var.length() < 3) return null;
                 char tmp = 0;
                 if (var.charAt(1) == '\\') {
@@ -255,8 +1511,8 @@ public class NSASM {
                 }
                 register.type = RegType.CHAR;
                 register.readOnly = true;
-                register.data = tmp;
-            } else if (verifyWord(var, WordType.STR)) {
+                register.setData(tmp);
+            } else if (type == WordType.STR) {
                 if (var.length() < 3) return null;
                 String tmp, rep;
                 try {
@@ -265,7 +1521,7 @@ public class NSASM {
                         Register repeat = getRegister(var.split("\"\\*")[1]);
                         if (repeat == null) return null;
                         if (repeat.type != RegType.INT) return null;
-                        for (int i = 1; i < (int) repeat.data; i++)
+                        for (int i = 1; i < (int) repeat.getData(); i++)
                             tmp = tmp.concat(rep);
                     } else {
                         tmp = var.substring(1, var.length() - 1);
@@ -278,8 +1534,8 @@ public class NSASM {
 
                 register.type = RegType.STR;
                 register.readOnly = true;
-                register.data = tmp;
-            } else if (verifyWord(var, WordType.INT)) {
+                register.setData(tmp);
+            } else if (type == WordType.INT) {
                 int tmp;
                 if (
                     (var.contains("x") || var.contains("X")) ^
@@ -310,8 +1566,8 @@ public class NSASM {
                 }
                 register.type = RegType.INT;
                 register.readOnly = true;
-                register.data = tmp;
-            } else if (verifyWord(var, WordType.FLOAT)) {
+                register.setData(tmp);
+            } else if (type == WordType.FLOAT) {
                 float tmp;
                 try {
                     tmp = Float.parseFloat(var.replace("f", "").replace("F", ""));
@@ -320,39 +1576,233 @@ public class NSASM {
                 }
                 register.type = RegType.FLOAT;
                 register.readOnly = true;
-                register.data = tmp;
-            } else if (verifyWord(var, WordType.TAG) || verifyWord(var, WordType.SEG)) {
+                register.setData(tmp);
+            } else if (type == WordType.TAG || type == WordType.SEG) {
                 register.type = RegType.STR;
                 register.readOnly = true;
-                register.data = var;
-            } else if (verifyWord(var, WordType.CODE)) {
+                register.setData(var);
+            } else if (type == WordType.CODE) {
                 register.type = RegType.CODE;
                 register.readOnly = true;
                 String code = var.substring(1, var.length() - 1);
                 code = Util.decodeLambda(code);
-                register.data = code;
-            } else if (verifyWord(var, WordType.MAP)) {
+                register.setData(code);
+            } else if (type == WordType.MAP) {
                 String code = var.substring(2, var.length() - 1);
 
                 register = new Register();
                 register.type = RegType.MAP;
                 register.readOnly = true;
-                register.data = new Map();
+                register.setData(new Map());
                 code = Util.decodeLambda(code);
-                funcList.get("mov").run(regGroup[regCnt], register, null);
+                funcList.func(OP_MOV).run(regGroup[regCnt], register, null);
 
                 Register reg = new Register();
                 reg.type = RegType.CODE; reg.readOnly = true;
-                reg.data = code + "\n" + "ret r" + regCnt + "\n";
+                reg.setData(code + "\n" + "ret r" + regCnt + "\n");
                 register = eval(reg);
             } else return null;
             return register;
         }
     }
 
-    public Result execute(String var) {
+    private int heapSlot(String name) {
+        Integer slot = heapSlots.get(name);
+        if (slot == null) {
+            slot = heapSlots.size();
+            heapSlots.put(name, slot);
+            if (slot == heapManager.length) heapManager = Arrays.copyOf(heapManager, slot << 1);
+        }
+        return slot;
+    }
+
+    private boolean bindSlot(Operand operand) {
+        Integer slot = heapSlots.get(operand.word);
+        if (slot == null) return false;
+        operand.index = slot;
+        return true;
+    }
+
+    private boolean isDefined(String name) {
+        Integer slot = heapSlots.get(name);
+        return slot != null && heapManager[slot] != null;
+    }
+
+    private Result define(String name, Register reg) {
+        if (heapUsed >= heapSize) {
+            out.print("\nNSASM heap over " + heapSize + "\n");
+            return Result.ERR;
+        }
+        int slot = heapSlot(name);
+        heapManager[slot] = reg;
+        heapUsed += 1;
+        if (reg.type == RegType.PAR && !heapParams) {
+            heapParams = true; //Those need execute(), so the engine starts over without var slots
+            bcSource = null;
+        }
+        return Result.OK;
+    }
+
+    private Operand decodeOperand(String var) {
+        if (var.length() == 0) return null;
+        WordType type = classify(var);
+        if (type == WordType.PAR) {
+            return new Operand(OperandType.PAR, var, -1);
+        } else if (type == WordType.REG) {
+            int index;
+            try {
+                index = Integer.valueOf(var.substring(1));
+            } catch (Exception e) {
+                return new Operand(OperandType.IMM, var, -1); //Left to getRegister
+            }
+            if (index < 0 || index >= regGroup.length)
+                return new Operand(OperandType.IMM, var, -1);
+            return new Operand(OperandType.REG, var, index);
+        } else if (type == WordType.VAR) {
+            Integer slot = heapSlots.get(var);
+            return new Operand(OperandType.VAR, var, slot == null ? -1 : slot);
+        } else if (isConstant(var, type)) {
+            Register value = getRegister(var, type);
+            if (value != null) {
+                return new Operand(OperandType.CONST, var, -1, value);
+            }
+        } else if (type == WordType.MAP) {
+            if (isPureMap(Util.decodeLambda(var.substring(2, var.length() - 1))))
+                return new Operand(OperandType.MAP, var, -1);
+        }
+        return new Operand(OperandType.IMM, var, -1);
+    }
+
+    private boolean isConstant(String var, WordType type) {
+        switch (type) {
+            case STR:
+                if (!var.contains("*")) return true;
+                String[] parts = var.split("\"\\*");
+                if (parts.length < 2 || parts[1].isEmpty()) return false;
+                WordType repeat = classify(parts[1]);
+                return repeat != WordType.PAR && repeat != WordType.REG && repeat != WordType.VAR;
+            case CHAR: case INT: case FLOAT: case TAG: case SEG: case CODE:
+                return true;
+        }
+        return false;
+    }
+
+    /* A map body can be evaluated once if it only reads registers it has set itself,
+       only copies numbers into registers it has not set yet, and only jumps backwards.
+       Then every line has run before any later one, and the result is always the same. */
+    private boolean isPureMap(String code) {
+        String[][] segs = Util.getSegments(code);
+        if (segs.length != 1) return false;
+        String[] lines = segs[0][1].split("\n");
+        Instruction[] insts = new Instruction[lines.length];
+        HashMap<String, Integer> tags = new HashMap<>();
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].isEmpty()) continue;
+            if (verifyWord(lines[i], WordType.TAG)) tags.putIfAbsent(lines[i], i);
+            else insts[i] = decode(lines[i]);
+        }
+
+        boolean[] numeric = new boolean[regGroup.length];
+        for (Instruction inst : insts) {
+            if (isCopy(inst)) numeric[inst.dst.index] = true;
+        }
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (Instruction inst : insts) {
+                if (!isCopy(inst)) continue;
+                if (numeric[inst.dst.index] && !isNumeric(inst.src, numeric)) {
+                    numeric[inst.dst.index] = false;
+                    changed = true;
+                }
+            }
+        }
+
+        boolean[] defined = new boolean[regGroup.length];
+        for (int i = 0; i < insts.length; i++) {
+            Instruction inst = insts[i];
+            if (inst == null) continue;
+            if (inst.result != null) {
+                if (inst.result == Result.OK) continue;
+                return false;
+            }
+            if (!funcList.isNative(inst.opcode)) return false;
+            for (Operand operand : new Operand[] { inst.dst, inst.src, inst.ext }) {
+                if (operand == null) continue;
+                if (operand.type == OperandType.REG && operand.index == regCnt) return false;
+                if (operand.type == OperandType.CONST && operand.value.type == RegType.CODE) return false;
+                if (operand.type != OperandType.REG && operand.type != OperandType.CONST) return false;
+            }
+            switch (inst.opcode) {
+                case OP_MOV:
+                    if (inst.src == null || inst.ext != null) return false;
+                    if (!isDefined(inst.src, defined)) return false;
+                    if (!isDefined(inst.dst, defined) && !isNumeric(inst.src, numeric)) return false;
+                    if (inst.dst.type == OperandType.REG) defined[inst.dst.index] = true;
+                    break;
+                case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD:
+                case OP_AND: case OP_OR: case OP_XOR: case OP_SHL: case OP_SHR:
+                    if (inst.src == null) return false;
+                    if (!isDefined(inst.src, defined) || !isDefined(inst.ext, defined)) return false;
+                    if (inst.ext == null) {
+                        if (!isDefined(inst.dst, defined)) return false;
+                    } else {
+                        if (inst.src.type != OperandType.REG) return false;
+                        if (!isDefined(inst.dst, defined) && !numeric[inst.src.index]) return false;
+                        if (inst.dst.type == OperandType.REG) defined[inst.dst.index] = true;
+                    }
+                    break;
+                case OP_INC: case OP_DEC: case OP_CMP: case OP_PUT:
+                    if (inst.ext != null) return false;
+                    if (!isDefined(inst.dst, defined) || !isDefined(inst.src, defined)) return false;
+                    break;
+                case OP_LOOP:
+                    if (!isDefined(inst.dst, defined) || !isDefined(inst.src, defined)) return false;
+                    if (!isBackward(inst.ext, tags, i)) return false;
+                    break;
+                case OP_JMP: case OP_JZ: case OP_JNZ: case OP_JG: case OP_JL:
+                    if (inst.src != null || !isBackward(inst.dst, tags, i)) return false;
+                    break;
+                case OP_NOP:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isCopy(Instruction inst) {
+        if (inst == null || inst.dst == null || inst.dst.type != OperandType.REG) return false;
+        if (inst.opcode == OP_MOV) return true;
+        if (inst.ext == null) return false;
+        switch (inst.opcode) {
+            case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD:
+            case OP_AND: case OP_OR: case OP_XOR: case OP_SHL: case OP_SHR:
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isDefined(Operand operand, boolean[] defined) {
+        return operand == null || operand.type == OperandType.CONST || defined[operand.index];
+    }
+
+    private boolean isNumeric(Operand operand, boolean[] numeric) {
+        if (operand == null) return false;
+        if (operand.type == OperandType.CONST)
+            return operand.value.type == RegType.INT || operand.value.type == RegType.FLOAT;
+        return operand.type == OperandType.REG && numeric[operand.index];
+    }
+
+    private boolean isBackward(Operand operand, HashMap<String, Integer> tags, int line) {
+        if (operand == null || operand.type != OperandType.CONST) return false;
+        Integer target = tags.get(operand.word);
+        return target != null && target < line;
+    }
+
+    protected Instruction decode(String var) {
         String operator, dst, src, ext;
-        Register dr = null, sr = null, er = null;
+        Operand dr = null, sr = null, er = null;
 
         operator = var.split(" ")[0];
         operator = operator.toLowerCase(); //To lower case
@@ -364,16 +1814,16 @@ public class NSASM {
                 operator.equals("map")
             ) { //Variable define
                 dst = var.substring(operator.length() + 1).split("=")[0];
-                if (var.length() <= operator.length() + 1 + dst.length()) return Result.ERR;
+                if (var.length() <= operator.length() + 1 + dst.length())
+                    return new Instruction(var, operator, -1, null, null, null, Result.ERR);
                 if (var.charAt(operator.length() + 1 + dst.length()) == '=')
                     src = var.substring(operator.length() + 1 + dst.length() + 1);
                 else src = "";
-                dr = new Register();
-                dr.readOnly = true; dr.type = RegType.STR; dr.data = dst;
-                sr = getRegister(src);
+                dr = new Operand(OperandType.NAME, dst, -1);
+                sr = decodeOperand(src);
             } else if (operator.equals("rem")) {
                 //Comment
-                return Result.OK;
+                return new Instruction(var, operator, -1, null, null, null, Result.OK);
             } else { //Normal code
                 String regs = var.substring(operator.length() + 1);
                 String res = ""; Util._string _res = new Util._string();
@@ -389,136 +1839,757 @@ public class NSASM {
                 if (args.size() > 1) src = args.get(1);
                 if (args.size() > 2) ext = args.get(2);
 
-                dr = getRegister(dst);
-                sr = getRegister(src);
-                er = getRegister(ext);
+                dr = decodeOperand(dst);
+                sr = decodeOperand(src);
+                er = decodeOperand(ext);
             }
         }
 
-        if (!funcList.containsKey(operator))
-            return verifyWord(operator, WordType.TAG) ? Result.OK : Result.ERR;
+        return new Instruction(var, operator, funcList.id(operator), dr, sr, er, null);
+    }
+
+    private Register getRegister(Operand operand, boolean shared) {
+        if (operand == null) return null;
+        switch (operand.type) {
+            case CONST:
+                if (!literalCache && operand.value.type == RegType.CODE)
+                    return getRegister(operand.word);
+                return shared ? operand.value : new Register(operand.value);
+            case MAP:
+                return literalCache ? getMapLiteral(operand.word) : getRegister(operand.word);
+            case REG:
+                return regGroup[operand.index];
+            case VAR:
+                if (operand.index < 0 && !bindSlot(operand)) return null;
+                return heapManager[operand.index];
+            case NAME:
+                Register register = new Register();
+                register.readOnly = true;
+                register.type = RegType.STR;
+                register.setData(operand.word);
+                return register;
+            default:
+                return getRegister(operand.word);
+        }
+    }
+
+    private Register getMapLiteral(String var) {
+        Map template = mapTemplates.get(var);
+        if (template == null || regGroup[regCnt].readOnly) {
+            Register register = getRegister(var);
+            if (register != null && register.type == RegType.MAP && register.getData() instanceof Map)
+                mapTemplates.put(var, ((Map) register.getData()).copy());
+            return register;
+        }
+
+        Register register = new Register();
+        register.type = RegType.MAP;
+        register.setData(template.copy());
+        funcList.func(OP_MOV).run(regGroup[regCnt], register, null);
+        return register;
+    }
+
+    public Result execute(String var) {
+        try {
+            return execute(decode(var));
+        } finally {
+            if (topLevel) flush();
+        }
+    }
+
+    protected Result execute(Instruction inst) {
+        if (inst.result != null) return inst.result;
+
+        //Operators that may write into a constant get their own copy
+        boolean shared = funcList.isNative(inst.opcode) && inst.opcode != OP_IN &&
+                         (inst.dst == null || inst.dst.type != OperandType.NAME);
+        Register dr = getRegister(inst.dst, shared);
+        Register sr = getRegister(inst.src, shared);
+        Register er = getRegister(inst.ext, shared);
+
+        Operator operator = funcList.func(inst.opcode);
+        if (operator == null)
+            return verifyWord(inst.operator, WordType.TAG) ? Result.OK : Result.ERR;
+
+        if (inst.kernels != null && funcList.isNative(inst.opcode)) {
+            Result result = runKernel(inst, dr, sr, er);
+            if (result != null) return result;
+        }
 
         Register tdr = null, tsr = null, ter = null;
         String pdr = "", psr = "", per = "";
         if (dr != null && dr.type == RegType.PAR) {
-            pdr = (String) dr.data;
+            pdr = (String) dr.getData();
             tdr = paramList.get(pdr).mod(null);
             dr = new Register(tdr);
         }
         if (sr != null && sr.type == RegType.PAR) {
-            psr = (String) sr.data;
+            psr = (String) sr.getData();
             tsr = paramList.get(psr).mod(null);
             sr = new Register(tsr);
         }
         if (er != null && er.type == RegType.PAR) {
-            per = (String) er.data;
+            per = (String) er.getData();
             ter = paramList.get(per).mod(null);
             er = new Register(ter);
         }
 
         prevDstReg = dr != null ? dr : prevDstReg;
-        Result result = funcList.get(operator).run(dr, sr, er);
+        if (!funcList.isNative(inst.opcode)) {
+            if (dr != null) dr.box();
+            if (sr != null) sr.box();
+            if (er != null) er.box();
+            boxRegGroup();
+            ArrayDeque<Map> maps = new ArrayDeque<>();
+            mapOf(dr, maps); mapOf(sr, maps); mapOf(er, maps);
+            boxMaps(maps);
+        }
+        Result result = operator.run(dr, sr, er);
 
-        if (ter != null && !ter.equals(er))
+        if (ter != null && !ter.equals(er)) {
+            er.box();
             paramList.get(per).mod(er);
-        if (tsr != null && !tsr.equals(sr))
+        }
+        if (tsr != null && !tsr.equals(sr)) {
+            sr.box();
             paramList.get(psr).mod(sr);
-        if (tdr != null && !tdr.equals(dr))
+        }
+        if (tdr != null && !tdr.equals(dr)) {
+            dr.box();
             paramList.get(pdr).mod(dr);
+        }
+
+        return result;
+    }
+
+    private Result runKernel(Instruction inst, Register dst, Register src, Register ext) {
+        if (dst == null) return null;
+        if (ext != null) return runFused(inst, dst, src, ext);
+        Register reg = dst;
+        switch (inst.opcode) {
+            case OP_INC: case OP_DEC:
+                if (src != null) return null;
+                src = oneReg;
+                break;
+            case OP_CMP:
+                if (src == null || stateReg.type == RegType.STR) return null;
+                reg = stateReg;
+                break;
+            default:
+                if (src == null) return null;
+        }
+        if (reg == dst && dst.readOnly) return null;
+
+        Kernel kernel = inst.kernels[kernelKey(dst.type, dst.kind(), src.kind())];
+        if (kernel == null) return null;
+        if (reg != dst) {
+            reg.copy(dst);
+            reg.readOnly = false;
+        }
+        prevDstReg = dst;
+        kernel.run(reg, src);
+        return Result.OK;
+    }
+
+    /* dst = src op ext without the push/op/mov/pop round trip, src is left as it was */
+    private Result runFused(Instruction inst, Register dst, Register src, Register ext) {
+        switch (inst.opcode) {
+            case OP_INC: case OP_DEC: case OP_CMP:
+                return null;
+        }
+        if (src == null || src == dst || src.readOnly || dst.readOnly) return null;
+        if (dst.type == RegType.STR && src.type == RegType.CHAR) return null;
+        if (stackTop >= stackSize) return null;
+        if (!funcList.isNative(OP_PUSH) || !funcList.isNative(OP_MOV) || !funcList.isNative(OP_POP))
+            return null;
+
+        Kernel kernel = inst.kernels[kernelKey(src.type, src.kind(), ext.kind())];
+        if (kernel == null) return null; //Only INT/CHAR/FLOAT pairs get here, so raw() is safe below
+        if ((inst.opcode == OP_DIV || inst.opcode == OP_MOD) && ext.raw() == 0)
+            return null; //Let it throw with src pushed, as before
+        tmpReg.copy(src);
+        kernel.run(tmpReg, ext);
+        dst.copy(tmpReg);
+        dst.readOnly = false;
+        prevDstReg = dst;
+        return Result.OK;
+    }
+
+    private boolean isNativeLoop() {
+        return funcList.isNative(OP_INC) && funcList.isNative(OP_DEC) &&
+               funcList.isNative(OP_CMP) && funcList.isNative(OP_MOV) &&
+               funcList.isNative(OP_SUB) && funcList.isNative(OP_JNZ) &&
+               funcList.isNative(OP_JMP);
+    }
+
+    private Result jump(String tag) {
+        int[] target = tagTable.get(tag);
+        if (target == null) return Result.ERR;
+        tmpSeg = target[0];
+        tmpCnt = target[1];
+        return Result.OK;
+    }
+
+    private boolean branch(int type) {
+        if (stateReg.kind() == TAG_INT) {
+            int value = (int) stateReg.raw();
+            switch (type) {
+                case OP_JZ: return value == 0;
+                case OP_JNZ: return value != 0;
+                case OP_JG: return value > 0;
+                default: return value < 0;
+            }
+        }
+        float value = floatOf(stateReg);
+        switch (type) {
+            case OP_JZ: return value == 0;
+            case OP_JNZ: return value != 0;
+            case OP_JG: return value > 0;
+            default: return value < 0;
+        }
+    }
+
+    private void boxRegGroup() {
+        for (Register reg : regGroup) reg.box();
+        if (useReg != null) useReg.box();
+    }
+
+    private void boxAll(Register result) {
+        boxRegGroup();
+        stateReg.box();
+        for (Register reg : heapManager) if (reg != null) reg.box();
+        for (int i = 0; i < stackTop; i++) stackManager[i].box();
+        if (result != null) result.box();
+        if (!topLevel) return; //Children hand their values back to the core that started them
+
+        ArrayDeque<Map> maps = new ArrayDeque<>();
+        for (Register reg : regGroup) mapOf(reg, maps);
+        mapOf(useReg, maps);
+        for (Register reg : heapManager) mapOf(reg, maps);
+        for (int i = 0; i < stackTop; i++) mapOf(stackManager[i], maps);
+        mapOf(result, maps);
+        boxMaps(maps);
+    }
+
+    private static void mapOf(Register reg, ArrayDeque<Map> maps) {
+        if (reg != null && reg.type == RegType.MAP && reg.data instanceof Map) maps.add((Map) reg.data);
+    }
+
+    /* Kernels leave data null, and the values they wrote may sit in maps nested
+       in maps by now. Each map is walked once, by identity. */
+    private static void boxMaps(ArrayDeque<Map> maps) {
+        Set<Map> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (!maps.isEmpty()) {
+            Map map = maps.poll();
+            if (!seen.add(map)) continue;
+            for (java.util.Map.Entry<Register, Register> entry : map.entries()) {
+                entry.getKey().box();
+                entry.getValue().box();
+                mapOf(entry.getValue(), maps);
+            }
+        }
+    }
+
+    public Register run() {
+        if (code == null) return null;
+
+        progSeg = progCnt = 0;
+
+        Result result;
+        try {
+            result = loop();
+        } finally {
+            if (topLevel) flush(); //Even when a Java exception escapes the script
+        }
+        if (result == Result.ERR) {
+            boxAll(null);
+            return null;
+        }
+        return result();
+    }
+
+    private Register result() {
+        if (prevDstReg != null) {
+            if (prevDstReg.readOnly) prevDstReg = new Register(prevDstReg); //May be a constant
+            prevDstReg.readOnly = false;
+        }
+        boxAll(prevDstReg);
+        return prevDstReg;
+    }
+
+    public void call(String name) {
+        Integer seg = segTable.get(name);
+        if (seg != null) {
+            progSeg = seg;
+            progCnt = 0;
+        }
+
+        try {
+            loop();
+        } finally {
+            if (topLevel) flush();
+        }
+        boxAll(null);
+    }
+
+    private Result pushFrame() {
+        if (frameTop >= callLimit) {
+            out.print("\nNSASM call depth over " + callLimit + "\n");
+            return Result.ERR;
+        }
+        if (frameTop == frameSeg.length) {
+            int size = (int) Math.min((long) frameTop << 1, callLimit);
+            frameSeg = Arrays.copyOf(frameSeg, size);
+            frameCnt = Arrays.copyOf(frameCnt, size);
+        }
+        frameSeg[frameTop] = progSeg;
+        frameCnt[frameTop] = progCnt;
+        frameTop += 1;
+        return Result.OK;
+    }
 
-        return result;
+    private boolean popFrame() { //Falls back to the line after the call
+        if (frameTop == 0) return false;
+        frameTop -= 1;
+        progCnt = frameCnt[frameTop] + 1;
+        progSeg = frameSeg[frameTop] - 1;
+        return true;
     }
 
-    public Register run() {
-        if (code == null) return null;
-        Result result; String segBuf, codeBuf;
+    private Result loop() {
+        return bytecode ? runBytecode() : runText();
+    }
 
-        progSeg = progCnt = 0;
+    private Result runText() {
+        Result result; Instruction codeBuf;
 
-        for (; progSeg < code.keySet().size(); progSeg++) {
-            segBuf = (String) (code.keySet().toArray())[progSeg];
-            if (code.get(segBuf) == null) continue;
+        for (; progSeg < segCode.length; progSeg++) {
+            if (segCode[progSeg] == null) continue;
 
-            for (; progCnt < code.get(segBuf).length; progCnt++) {
+            for (; progCnt < segCode[progSeg].length; progCnt++) {
                 if (tmpSeg >= 0 || tmpCnt >= 0) {
                     progSeg = tmpSeg; progCnt = tmpCnt;
                     tmpSeg = -1; tmpCnt = -1;
                 }
 
-                segBuf = (String) (code.keySet().toArray())[progSeg];
-                if (code.get(segBuf) == null) break;
-                codeBuf = code.get(segBuf)[progCnt];
+                if (segCode[progSeg] == null) break;
+                codeBuf = segCode[progSeg][progCnt];
 
-                if (codeBuf.length() == 0) {
+                if (codeBuf.line.length() == 0) {
                     continue;
                 }
 
                 result = execute(codeBuf);
                 if (result == Result.ERR) {
-                    Util.print("\nNSASM running error!\n");
-                    Util.print("At "+ segBuf + ", line " + (progCnt + 1) + ": " + codeBuf + "\n\n");
-                    return null;
+                    out.print("\nNSASM running error!\n");
+                    out.print("At "+ segName[progSeg] + ", line " + (progCnt + 1) + ": " + codeBuf.line + "\n\n");
+                    return result;
                 } else if (result == Result.ETC) {
-                    if (prevDstReg != null) prevDstReg.readOnly = false;
-                    return prevDstReg;
+                    return result;
                 }
             }
 
-            if (!backupReg.isEmpty()) {
-                progCnt = backupReg.pop() + 1;
-                progSeg = backupReg.pop() - 1;
-            } else progCnt = 0;
+            if (!popFrame()) progCnt = 0;
         }
 
-        if (prevDstReg != null) prevDstReg.readOnly = false;
-        return prevDstReg;
+        return Result.OK;
     }
 
-    public void call(String segName) {
-        Result result; String segBuf, codeBuf;
+    /* Tiered engine, the default: a segment starts on execute(), is decoded into
+       BC_WIDTH ints per line once it has run TIER_DECODE steps (operands become
+       register or constant pool indexes and jump targets are resolved), and after
+       TIER_COMPILE steps it reaches TIER_JIT, where each line is bound into a
+       closure specialized to the operand kinds profiled on the decoded tier. A
+       failed guard drops the segment back to the decoded tier and marks the line
+       as polymorphic. */
+    private static final int BC_WIDTH = 6; // op, dst, src, ext, target seg, target line
+    private static final int BC_SKIP = -1, BC_TAG = -2, BC_ESC = -3;
+    private static final int BC_NONE = 0, BC_REG = 1, BC_CONST = 2, BC_VAR = 3;
+
+    public static final int TIER_TEXT = 0, TIER_DECODED = 1, TIER_JIT = 2;
+    private static final int TIER_DECODE = 50, TIER_COMPILE = 1000;
+    private static final int KIND_NONE = 0, KIND_MIXED = -1;
+
+    private int[][] bcCode;
+    private ArrayList<Register> bcPool;
+    private Register[] bcConsts;
+    private Instruction[][] bcSource;
+
+    private interface Step {
+        Result run();
+    }
 
-        for (int seg = 0; seg < code.keySet().size(); seg++) {
-            segBuf = (String) (code.keySet().toArray())[seg];
-            if (segName.equals(segBuf)) {
-                progSeg = seg;
-                progCnt = 0;
-                break;
+    private Step[][] jitCode;
+    private int[] tier, tierSteps, tierDeopts;
+    private int[][] tierJumps, tierKinds; // per line: jumps landing there, kernelKey + 1 seen there
+
+    private int bcOperand(Operand operand) {
+        if (operand == null) return BC_NONE << 24;
+        if (operand.type == OperandType.REG) return (BC_REG << 24) | operand.index;
+        if (operand.type == OperandType.VAR && !heapParams) {
+            if (operand.index < 0 && !bindSlot(operand)) return -1; //Not defined yet, left to execute()
+            return (BC_VAR << 24) | operand.index;
+        }
+        if (operand.type == OperandType.CONST && operand.value.type != RegType.CODE) {
+            bcPool.add(operand.value);
+            return (BC_CONST << 24) | (bcPool.size() - 1);
+        }
+        return -1;
+    }
+
+    private int[] bcTarget(Operand operand) {
+        if (operand == null || operand.type != OperandType.CONST) return null;
+        if (operand.value.type != RegType.STR || !verifyWord(operand.word, WordType.TAG)) return null;
+        return tagTable.get(operand.word);
+    }
+
+    private void resetTiers() {
+        bcCode = new int[segCode.length][];
+        bcPool = new ArrayList<>();
+        bcConsts = new Register[0];
+        bcSource = segCode;
+        jitCode = new Step[segCode.length][];
+        tier = new int[segCode.length];
+        tierSteps = new int[segCode.length];
+        tierDeopts = new int[segCode.length];
+        tierJumps = new int[segCode.length][];
+        tierKinds = new int[segCode.length][];
+        for (int seg = 0; seg < segCode.length; seg++) {
+            if (segCode[seg] == null) continue;
+            tierJumps[seg] = new int[segCode[seg].length];
+            tierKinds[seg] = new int[segCode[seg].length];
+        }
+    }
+
+    private void decodeSegment(int seg) {
+        int[] code = new int[segCode[seg].length * BC_WIDTH];
+        for (int line = 0; line < segCode[seg].length; line++) {
+            Instruction inst = segCode[seg][line];
+            int at = line * BC_WIDTH;
+            code[at + 4] = code[at + 5] = -1;
+            if (inst.line.length() == 0) {
+                code[at] = BC_SKIP;
+                continue;
+            }
+            code[at] = BC_ESC;
+            if (inst.result != null || inst.opcode == OP_IN) continue;
+            if (funcList.func(inst.opcode) == null) {
+                if (verifyWord(inst.operator, WordType.TAG)) code[at] = BC_TAG;
+                continue;
+            }
+            if (!funcList.isNative(inst.opcode)) continue;
+            int dst = bcOperand(inst.dst), src = bcOperand(inst.src), ext = bcOperand(inst.ext);
+            if (dst == -1 || src == -1 || ext == -1) continue;
+            code[at] = inst.opcode;
+            code[at + 1] = dst; code[at + 2] = src; code[at + 3] = ext;
+
+            int[] target = null;
+            switch (inst.opcode) {
+                case OP_JMP: case OP_JZ: case OP_JNZ: case OP_JG: case OP_JL:
+                    if (inst.src == null && funcList.isNative(OP_JMP)) target = bcTarget(inst.dst);
+                    break;
+                case OP_LOOP:
+                    if (isNativeLoop()) target = bcTarget(inst.ext);
+                    break;
             }
+            if (target != null) {
+                code[at + 4] = target[0];
+                code[at + 5] = target[1];
+            }
+        }
+        bcCode[seg] = code;
+        bcConsts = bcPool.toArray(bcConsts);
+        tier[seg] = TIER_DECODED;
+    }
+
+    private Register bcRegister(int operand) {
+        switch (operand >>> 24) {
+            case BC_REG: return regGroup[operand & 0xFFFFFF];
+            case BC_CONST: return bcConsts[operand & 0xFFFFFF];
+            case BC_VAR: return heapManager[operand & 0xFFFFFF];
+        }
+        return null;
+    }
+
+    private void profileKinds(int seg, int line, Instruction inst, Register dst, Register src) {
+        if (inst.opcode == OP_INC || inst.opcode == OP_DEC) {
+            if (src != null) return;
+            src = oneReg;
+        } else if (src == null) return;
+        int key = kernelKey(dst.type, dst.kind(), src.kind()) + 1;
+        int seen = tierKinds[seg][line];
+        if (seen == KIND_NONE) tierKinds[seg][line] = key;
+        else if (seen != key) tierKinds[seg][line] = KIND_MIXED;
+    }
+
+    private Result fastMov(Register dst, Register src) {
+        if (dst == null || src == null || dst.readOnly) return null;
+        if (dst.type == RegType.CHAR && src.type == RegType.STR) return null;
+        if (dst.type == RegType.STR && src.type == RegType.CHAR) return null;
+        dst.copy(src);
+        dst.readOnly = false;
+        return Result.OK;
+    }
+
+    private Result fastLoop(Register dst, Register src, int seg, int line) {
+        if (dst == null || src == null || dst.readOnly) return null;
+        if (dst.type != RegType.INT || src.type != RegType.INT) return null;
+        if (dst.kind() != TAG_INT || src.kind() != TAG_INT) return null;
+        int value = (int) dst.raw() + ((int) src.raw() > 0 ? 1 : -1);
+        dst.setInt(value);
+        stateReg.copy(dst);
+        stateReg.setInt(value - (int) src.raw());
+        if (value != (int) src.raw()) {
+            tmpSeg = seg;
+            tmpCnt = line;
+        }
+        return Result.OK;
+    }
+
+    private void compileSegment(int seg) {
+        Step[] steps = new Step[segCode[seg].length];
+        for (int line = 0; line < steps.length; line++)
+            steps[line] = compileStep(seg, line);
+        jitCode[seg] = steps;
+        tier[seg] = TIER_JIT;
+    }
+
+    private void deopt(int seg, int line) {
+        jitCode[seg] = null;
+        tier[seg] = TIER_DECODED;
+        tierSteps[seg] = TIER_DECODE;
+        tierDeopts[seg] += 1;
+        tierKinds[seg][line] = KIND_MIXED;
+    }
+
+    private Step compileStep(int seg, int line) {
+        Instruction inst = segCode[seg][line];
+        int[] code = bcCode[seg];
+        int at = line * BC_WIDTH, op = code[at];
+        switch (op) {
+            case BC_SKIP: case BC_TAG:
+                return () -> Result.OK;
+            case BC_ESC:
+                return () -> execute(inst);
+        }
+
+        Register dst = bcRegister(code[at + 1]), src = bcRegister(code[at + 2]), ext = bcRegister(code[at + 3]);
+        int toSeg = code[at + 4], toLine = code[at + 5];
+        for (int i = 1; i <= 3; i++) //Not defined yet, so it can't be bound
+            if (code[at + i] >>> 24 == BC_VAR && bcRegister(code[at + i]) == null) return () -> execute(inst);
+        if (dst == null) return () -> funcList.func(op).run(null, src, ext);
+
+        switch (op) {
+            case OP_MOV:
+                if (ext != null) break;
+                return () -> {
+                    prevDstReg = dst;
+                    Result result = fastMov(dst, src);
+                    return result != null ? result : funcList.func(op).run(dst, src, null);
+                };
+            case OP_JMP:
+                if (toSeg < 0) break;
+                return () -> {
+                    prevDstReg = dst;
+                    tmpSeg = toSeg;
+                    tmpCnt = toLine;
+                    return Result.OK;
+                };
+            case OP_JZ: case OP_JNZ: case OP_JG: case OP_JL:
+                if (toSeg < 0) break;
+                return () -> {
+                    prevDstReg = dst;
+                    if (branch(op)) {
+                        tmpSeg = toSeg;
+                        tmpCnt = toLine;
+                    }
+                    return Result.OK;
+                };
+            case OP_LOOP:
+                if (toSeg < 0) break;
+                return () -> {
+                    prevDstReg = dst;
+                    Result result = fastLoop(dst, src, toSeg, toLine);
+                    return result != null ? result : funcList.func(op).run(dst, src, ext);
+                };
+            default:
+                if (inst.kernels == null) break;
+                Step step = ext == null ? compileKernel(seg, line, inst, dst, src) : null;
+                if (step != null) return step;
+                return () -> {
+                    prevDstReg = dst;
+                    Result result = runKernel(inst, dst, src, ext);
+                    return result != null ? result : funcList.func(op).run(dst, src, ext);
+                };
         }
+        return () -> {
+            prevDstReg = dst;
+            return funcList.func(op).run(dst, src, ext);
+        };
+    }
+
+    /* The kernel the profile saw, bound behind a guard on the kinds it saw */
+    private Step compileKernel(int seg, int line, Instruction inst, Register dst, Register src) {
+        int key = tierKinds[seg][line] - 1;
+        if (key < 0 || inst.kernels[key] == null) return null;
+        Kernel kernel = inst.kernels[key];
+        RegType type = RegType.values()[key >> 4];
+        int dstKind = (key >> 2) & 3, srcKind = key & 3;
+        int op = inst.opcode;
+        Register from = src != null ? src : oneReg;
+        Step generic = () -> {
+            deopt(seg, line);
+            Result result = runKernel(inst, dst, src, null);
+            return result != null ? result : funcList.func(op).run(dst, src, null);
+        };
+
+        if (op == OP_CMP) return () -> {
+            prevDstReg = dst;
+            if (dst.type != type || dst.kind() != dstKind || from.kind() != srcKind ||
+                stateReg.type == RegType.STR) return generic.run();
+            stateReg.copy(dst);
+            stateReg.readOnly = false;
+            kernel.run(stateReg, from);
+            return Result.OK;
+        };
+        return () -> {
+            prevDstReg = dst;
+            if (dst.type != type || dst.readOnly || dst.kind() != dstKind || from.kind() != srcKind)
+                return generic.run();
+            kernel.run(dst, from);
+            return Result.OK;
+        };
+    }
 
-        for (; progSeg < code.keySet().size(); progSeg++) {
-            segBuf = (String) (code.keySet().toArray())[progSeg];
-            if (code.get(segBuf) == null) continue;
+    private Result runBytecode() {
+        Result result; Instruction codeBuf; int[] code; int at, op;
+        Register dst, src, ext;
 
-            for (; progCnt < code.get(segBuf).length; progCnt++) {
+        for (; progSeg < segCode.length; progSeg++) {
+            if (segCode[progSeg] == null) continue;
+
+            for (; progCnt < segCode[progSeg].length; progCnt++) {
                 if (tmpSeg >= 0 || tmpCnt >= 0) {
                     progSeg = tmpSeg; progCnt = tmpCnt;
                     tmpSeg = -1; tmpCnt = -1;
+                    if (bcSource == segCode && tierJumps[progSeg] != null) tierJumps[progSeg][progCnt] += 1;
                 }
 
-                segBuf = (String) (code.keySet().toArray())[progSeg];
-                if (code.get(segBuf) == null) break;
-                codeBuf = code.get(segBuf)[progCnt];
-
-                if (codeBuf.length() == 0) {
-                    continue;
+                if (segCode[progSeg] == null) break;
+                if (bcSource != segCode) resetTiers(); //First step, or ld changed the code
+                int steps = ++tierSteps[progSeg];
+                if (tier[progSeg] == TIER_TEXT && steps >= TIER_DECODE) decodeSegment(progSeg);
+                else if (tier[progSeg] == TIER_DECODED && steps >= TIER_COMPILE) compileSegment(progSeg);
+
+                if (tier[progSeg] == TIER_JIT) {
+                    Step[] jit = jitCode[progSeg];
+                    int seg = progSeg;
+                    result = jit[progCnt].run();
+                    while (result == Result.OK && bcSource == segCode && jitCode[seg] == jit && progCnt + 1 < jit.length) {
+                        if (tmpSeg >= 0 || tmpCnt >= 0) { //Stay here while jumps don't leave the segment
+                            if (tmpSeg != seg) break;
+                            progCnt = tmpCnt;
+                            tmpSeg = -1; tmpCnt = -1;
+                            tierJumps[seg][progCnt] += 1;
+                        } else progCnt++;
+                        tierSteps[seg] += 1;
+                        result = jit[progCnt].run();
+                    }
+                } else if (tier[progSeg] == TIER_TEXT) {
+                    codeBuf = segCode[progSeg][progCnt];
+                    if (codeBuf.line.length() == 0) continue;
+                    result = execute(codeBuf);
+                } else {
+                    code = bcCode[progSeg];
+                    at = progCnt * BC_WIDTH;
+                    op = code[at];
+
+                    switch (op) {
+                        case BC_SKIP:
+                            continue;
+                        case BC_TAG:
+                            result = Result.OK;
+                            break;
+                        case BC_ESC:
+                            result = execute(segCode[progSeg][progCnt]);
+                            break;
+                        default:
+                            dst = bcRegister(code[at + 1]);
+                            src = bcRegister(code[at + 2]);
+                            ext = bcRegister(code[at + 3]);
+                            if (dst != null) prevDstReg = dst;
+                            switch (op) {
+                                case OP_MOV:
+                                    result = ext == null ? fastMov(dst, src) : null;
+                                    if (result == null) result = funcList.func(op).run(dst, src, ext);
+                                    break;
+                                case OP_JMP: case OP_JZ: case OP_JNZ: case OP_JG: case OP_JL:
+                                    if (code[at + 4] < 0) {
+                                        result = funcList.func(op).run(dst, src, ext);
+                                    } else {
+                                        if (op == OP_JMP || branch(op)) {
+                                            tmpSeg = code[at + 4];
+                                            tmpCnt = code[at + 5];
+                                        }
+                                        result = Result.OK;
+                                    }
+                                    break;
+                                case OP_LOOP:
+                                    result = code[at + 4] >= 0 ? fastLoop(dst, src, code[at + 4], code[at + 5]) : null;
+                                    if (result == null) result = funcList.func(op).run(dst, src, ext);
+                                    break;
+                                default:
+                                    Instruction inst = segCode[progSeg][progCnt];
+                                    if (inst.kernels != null && dst != null && ext == null)
+                                        profileKinds(progSeg, progCnt, inst, dst, src);
+                                    result = inst.kernels != null ? runKernel(inst, dst, src, ext) : null;
+                                    if (result == null) result = funcList.func(op).run(dst, src, ext);
+                                    break;
+                            }
+                            break;
+                    }
                 }
 
-                result = execute(codeBuf);
                 if (result == Result.ERR) {
-                    Util.print("\nNSASM running error!\n");
-                    Util.print("At "+ segBuf + ", line " + (progCnt + 1) + ": " + codeBuf + "\n\n");
-                    return;
+                    out.print("\nNSASM running error!\n");
+                    out.print("At "+ segName[progSeg] + ", line " + (progCnt + 1) + ": " + segCode[progSeg][progCnt].line + "\n\n");
+                    return result;
                 } else if (result == Result.ETC) {
-                    return;
+                    return result;
                 }
             }
 
-            if (!backupReg.isEmpty()) {
-                progCnt = backupReg.pop() + 1;
-                progSeg = backupReg.pop() - 1;
-            } else progCnt = 0;
+            if (!popFrame()) progCnt = 0;
+        }
+
+        return Result.OK;
+    }
+
+    public int getTier(String segment) {
+        Integer seg = segTable.get(segment);
+        if (seg == null || tier == null || bcSource != segCode) return TIER_TEXT;
+        return tier[seg];
+    }
+
+    public String getProfile() {
+        StringBuilder builder = new StringBuilder();
+        if (tier == null || bcSource != segCode) return builder.toString();
+        for (int seg = 0; seg < segCode.length; seg++) {
+            if (segCode[seg] == null) continue;
+            builder.append(segName[seg]).append(": tier ").append(tier[seg])
+                   .append(", steps ").append(tierSteps[seg])
+                   .append(", deopts ").append(tierDeopts[seg]).append('\n');
+            for (int line = 0; line < segCode[seg].length; line++) {
+                int kinds = tierKinds[seg][line];
+                if (tierJumps[seg][line] == 0 && kinds == KIND_NONE) continue;
+                builder.append("    ").append(line + 1).append(": ").append(segCode[seg][line].line.trim());
+                if (tierJumps[seg][line] != 0) builder.append(", jumps ").append(tierJumps[seg][line]);
+                if (kinds == KIND_MIXED) builder.append(", mixed");
+                else if (kinds != KIND_NONE) builder.append(", ").append(RegType.values()[(kinds - 1) >> 4]);
+                builder.append('\n');
+            }
         }
+        return builder.toString();
     }
 
     /* TODO: Should override in subclass */
@@ -529,38 +2600,83 @@ public class NSASM {
     protected Register eval(Register register) {
         if (register == null) return null;
         if (register.type != RegType.CODE) return null;
-        String[][] code = Util.getSegments(register.data.toString());
-        return instance(this, code).run();
+        String text = register.getData().toString();
+        CodeCache.Entry entry = literalCache ? codeCache.take(text) : null;
+        String[][] code = entry != null ? entry.code : Util.getSegments(text);
+        NSASM core = entry != null ? entry.core : null;
+        if (core != null) {
+            core.reuse(this);
+        } else {
+            core = instance(this, code);
+            core.literalCache = literalCache;
+            core.bytecode = bytecode;
+        }
+        Register result = core.run();
+        if (!literalCache) return result;
+        if (!core.reusable || result == null) {
+            codeCache.give(text, code, null);
+            return result;
+        }
+        result = new Register(result); //The core's registers are rewritten by the next eval
+        codeCache.give(text, code, core);
+        return result;
     }
 
-    private String[] convToArray(String var) {
+    private Instruction[] convToArray(String var) {
         Scanner scanner = new Scanner(var);
-        LinkedList<String> buf = new LinkedList<>();
+        LinkedList<Instruction> buf = new LinkedList<>();
 
         while (scanner.hasNextLine()) {
-            buf.add(scanner.nextLine());
+            buf.add(decode(scanner.nextLine()));
         }
 
         if (buf.isEmpty()) return null;
-        return buf.toArray(new String[0]);
+        return buf.toArray(new Instruction[0]);
+    }
+
+    private void buildJumpTable() {
+        segTable.clear();
+        tagTable.clear();
+        segName = new String[code.size()];
+        segCode = new Instruction[code.size()][];
+
+        int seg = 0;
+        for (java.util.Map.Entry<String, Instruction[]> i : code.entrySet()) {
+            segTable.put(i.getKey(), seg);
+            segName[seg] = i.getKey();
+            segCode[seg] = i.getValue();
+            if (i.getValue() != null) {
+                for (int line = 0; line < i.getValue().length; line++) {
+                    if (verifyWord(i.getValue()[line].line, WordType.TAG))
+                        tagTable.putIfAbsent(i.getValue()[line].line, new int[] { seg, line });
+                }
+            }
+            seg += 1;
+        }
     }
 
     private Result appendCode(String[][] code) {
+        Result result = appendSegments(code);
+        buildJumpTable();
+        return result;
+    }
+
+    private Result appendSegments(String[][] code) {
         if (code == null) return Result.OK;
         for (String[] seg : code) {
             if (seg[0].startsWith(".")) continue; //This is conf seg
             if (seg[0].startsWith("@")) { //This is override seg
                 if (!this.code.containsKey(seg[0].substring(1))) {
-                    Util.print("\nNSASM loading error!\n");
-                    Util.print("At "+ seg[0].substring(1) + "\n");
+                    out.print("\nNSASM loading error!\n");
+                    out.print("At "+ seg[0].substring(1) + "\n");
                     return Result.ERR;
                 }
                 this.code.replace(seg[0].substring(1), convToArray(seg[1]));
             } else {
                 if (this.code.containsKey(seg[0])) {
                     if (seg[0].startsWith("_pub_")) continue; //This is pub seg
-                    Util.print("\nNSASM loading error!\n");
-                    Util.print("At "+ seg[0] + "\n");
+                    out.print("\nNSASM loading error!\n");
+                    out.print("At "+ seg[0] + "\n");
                     return Result.ERR;
                 }
                 this.code.put(seg[0], convToArray(seg[1]));
@@ -575,23 +2691,72 @@ public class NSASM {
     }
 
     private NSASM(NSASM base, String[][] code) {
-        this(base.heapSize, base.stackSize, base.regCnt, code);
+        this(base.heapSize, base.stackSize, base.regCnt, code, base.out, base.debug);
+        input = base.input;
+        ports = base.ports;
+        topLevel = false;
+        copyRegGroup(base);
+        literalCache = base.literalCache;
+        bytecode = base.bytecode;
+        callLimit = base.callLimit;
+        mapTemplates = base.mapTemplates;
+        mapKeys = base.mapKeys;
+        codeCache = base.codeCache;
+    }
+
+    private void reuse(NSASM base) {
         copyRegGroup(base);
+        useReg = regGroup[regCnt];
+        Arrays.fill(heapManager, null);
+        heapUsed = 0;
+        bcSource = null; //The tiers bound the last run's heap registers
+        stackTop = 0;
+        frameTop = 0;
+        tmpSeg = -1; tmpCnt = -1;
+        stateReg.setInt(0);
+        stateReg.type = RegType.INT;
+        stateReg.readOnly = false;
+        prevDstReg = null;
+        argReg = null;
+        literalCache = base.literalCache;
+        bytecode = base.bytecode;
+        callLimit = base.callLimit;
     }
 
     public NSASM(int heapSize, int stackSize, int regCnt, String[][] code) {
-        heapManager = new LinkedHashMap<>(heapSize);
-        stackManager = new LinkedList<>();
+        this(heapSize, stackSize, regCnt, code, null, null);
+    }
+
+    private NSASM(int heapSize, int stackSize, int regCnt, String[][] code, Output out, Output debug) {
+        this.out = out != null ? out : new Output(System.out);
+        this.debug = debug != null ? debug : this.out;
+        input = Util.console();
+        ports = new HashMap<>();
+        heapSlots = new HashMap<>();
+        heapManager = new Register[Math.max(heapSize, 1)];
+        heapUsed = 0;
+        stackManager = new Register[stackSize];
+        for (int i = 0; i < stackSize; i++) stackManager[i] = new Register();
+        stackTop = 0;
         this.heapSize = heapSize;
         this.stackSize = stackSize;
         this.regCnt = regCnt;
 
         stateReg = new Register();
-        stateReg.data = 0;
+        stateReg.setData(0);
         stateReg.readOnly = false;
         stateReg.type = RegType.INT;
 
-        backupReg = new LinkedList<>();
+        oneReg = new Register();
+        oneReg.setInt(1);
+        oneReg.readOnly = false;
+        oneReg.type = RegType.CHAR;
+
+        tmpReg = new Register();
+
+        frameSeg = new int[16];
+        frameCnt = new int[16];
+        frameTop = 0;
         progSeg = 0; progCnt = 0;
         tmpSeg = -1; tmpCnt = -1;
 
@@ -600,21 +2765,27 @@ public class NSASM {
             regGroup[i] = new Register();
             regGroup[i].type = RegType.INT;
             regGroup[i].readOnly = false;
-            regGroup[i].data = 0;
+            regGroup[i].setData(0);
         }
         useReg = regGroup[regCnt];
         argReg = null;
 
-        funcList = new LinkedHashMap<>();
+        funcList = new FuncList();
         loadFuncList();
 
         paramList = new LinkedHashMap<>();
         loadParamList();
 
         this.code = new LinkedHashMap<>();
+        segTable = new HashMap<>();
+        tagTable = new HashMap<>();
+        mapTemplates = new HashMap<>();
+        mapKeys = new HashMap<>();
+        codeCache = new CodeCache(CODE_CACHE);
         if (appendCode(code) == Result.ERR) {
-            Util.print("At file: " + "_main_" + "\n\n");
+            this.out.print("At file: " + "_main_" + "\n\n");
             this.code.clear();
+            buildJumpTable();
         }
     }
     
@@ -630,19 +2801,58 @@ public class NSASM {
         return value;
     }
 
+    private int intOf(Register reg) {
+        switch (reg.kind()) {
+            case TAG_INT:
+                return (int) reg.raw();
+            case TAG_CHAR:
+                char c = (char) reg.raw();
+                if (c >= '0' && c <= '9') return c - '0';
+                break;
+        }
+        return (int) convValue(reg.getData(), RegType.INT);
+    }
+
+    private char charOf(Register reg) {
+        switch (reg.kind()) {
+            case TAG_CHAR:
+                return (char) reg.raw();
+            case TAG_INT:
+                int value = (int) reg.raw();
+                if (value < 0) return '-';
+                while (value >= 10) value /= 10;
+                return (char) ('0' + value);
+        }
+        return (char) convValue(reg.getData(), RegType.CHAR);
+    }
+
+    private float floatOf(Register reg) {
+        switch (reg.kind()) {
+            case TAG_FLOAT:
+                return Float.intBitsToFloat((int) reg.raw());
+            case TAG_INT:
+                return (int) reg.raw();
+            case TAG_CHAR:
+                char c = (char) reg.raw();
+                if (c >= '0' && c <= '9') return c - '0';
+                break;
+        }
+        return (float) convValue(reg.getData(), RegType.FLOAT);
+    }
+
     private Result calcInt(Register dst, Register src, char type) {
         switch (type) {
-            case '+': dst.data = (int) convValue(dst.data, RegType.INT) + (int) convValue(src.data, RegType.INT); break;
-            case '-': dst.data = (int) convValue(dst.data, RegType.INT) - (int) convValue(src.data, RegType.INT); break;
-            case '*': dst.data = (int) convValue(dst.data, RegType.INT) * (int) convValue(src.data, RegType.INT); break;
-            case '/': dst.data = (int) convValue(dst.data, RegType.INT) / (int) convValue(src.data, RegType.INT); break;
-            case '%': dst.data = (int) convValue(dst.data, RegType.INT) % (int) convValue(src.data, RegType.INT); break;
-            case '&': dst.data = (int) convValue(dst.data, RegType.INT) & (int) convValue(src.data, RegType.INT); break;
-            case '|': dst.data = (int) convValue(dst.data, RegType.INT) | (int) convValue(src.data, RegType.INT); break;
-            case '~': dst.data = ~(int) convValue(dst.data, RegType.INT); break;
-            case '^': dst.data = (int) convValue(dst.data, RegType.INT) ^ (int) convValue(src.data, RegType.INT); break;
-            case '<': dst.data = (int) convValue(dst.data, RegType.INT) << (int) convValue(src.data, RegType.INT); break;
-            case '>': dst.data = (int) convValue(dst.data, RegType.INT) >> (int) convValue(src.data, RegType.INT); break;
+            case '+': dst.setInt(intOf(dst) + intOf(src)); break;
+            case '-': dst.setInt(intOf(dst) - intOf(src)); break;
+            case '*': dst.setInt(intOf(dst) * intOf(src)); break;
+            case '/': dst.setInt(intOf(dst) / intOf(src)); break;
+            case '%': dst.setInt(intOf(dst) % intOf(src)); break;
+            case '&': dst.setInt(intOf(dst) & intOf(src)); break;
+            case '|': dst.setInt(intOf(dst) | intOf(src)); break;
+            case '~': dst.setInt(~intOf(dst)); break;
+            case '^': dst.setInt(intOf(dst) ^ intOf(src)); break;
+            case '<': dst.setInt(intOf(dst) << intOf(src)); break;
+            case '>': dst.setInt(intOf(dst) >> intOf(src)); break;
             default: return Result.ERR;
         }
         return Result.OK;
@@ -650,17 +2860,17 @@ public class NSASM {
 
     private Result calcChar(Register dst, Register src, char type) {
         switch (type) {
-            case '+': dst.data = (char) convValue(dst.data, RegType.CHAR) + (char) convValue(src.data, RegType.CHAR); break;
-            case '-': dst.data = (char) convValue(dst.data, RegType.CHAR) - (char) convValue(src.data, RegType.CHAR); break;
-            case '*': dst.data = (char) convValue(dst.data, RegType.CHAR) * (char) convValue(src.data, RegType.CHAR); break;
-            case '/': dst.data = (char) convValue(dst.data, RegType.CHAR) / (char) convValue(src.data, RegType.CHAR); break;
-            case '%': dst.data = (char) convValue(dst.data, RegType.CHAR) % (char) convValue(src.data, RegType.CHAR); break;
-            case '&': dst.data = (char) convValue(dst.data, RegType.CHAR) & (char) convValue(src.data, RegType.CHAR); break;
-            case '|': dst.data = (char) convValue(dst.data, RegType.CHAR) | (char) convValue(src.data, RegType.CHAR); break;
-            case '~': dst.data = ~(char) convValue(dst.data, RegType.CHAR); break;
-            case '^': dst.data = (char) convValue(dst.data, RegType.CHAR) ^ (char) convValue(src.data, RegType.CHAR); break;
-            case '<': dst.data = (char) convValue(dst.data, RegType.CHAR) << (char) convValue(src.data, RegType.CHAR); break;
-            case '>': dst.data = (char) convValue(dst.data, RegType.CHAR) >> (char) convValue(src.data, RegType.CHAR); break;
+            case '+': dst.setInt(charOf(dst) + charOf(src)); break;
+            case '-': dst.setInt(charOf(dst) - charOf(src)); break;
+            case '*': dst.setInt(charOf(dst) * charOf(src)); break;
+            case '/': dst.setInt(charOf(dst) / charOf(src)); break;
+            case '%': dst.setInt(charOf(dst) % charOf(src)); break;
+            case '&': dst.setInt(charOf(dst) & charOf(src)); break;
+            case '|': dst.setInt(charOf(dst) | charOf(src)); break;
+            case '~': dst.setInt(~charOf(dst)); break;
+            case '^': dst.setInt(charOf(dst) ^ charOf(src)); break;
+            case '<': dst.setInt(charOf(dst) << charOf(src)); break;
+            case '>': dst.setInt(charOf(dst) >> charOf(src)); break;
             default: return Result.ERR;
         }
         return Result.OK;
@@ -668,10 +2878,10 @@ public class NSASM {
 
     private Result calcFloat(Register dst, Register src, char type) {
         switch (type) {
-            case '+': dst.data = (float) convValue(dst.data, RegType.FLOAT) + (float) convValue(src.data, RegType.FLOAT); break;
-            case '-': dst.data = (float) convValue(dst.data, RegType.FLOAT) - (float) convValue(src.data, RegType.FLOAT); break;
-            case '*': dst.data = (float) convValue(dst.data, RegType.FLOAT) * (float) convValue(src.data, RegType.FLOAT); break;
-            case '/': dst.data = (float) convValue(dst.data, RegType.FLOAT) / (float) convValue(src.data, RegType.FLOAT); break;
+            case '+': dst.setFloat(floatOf(dst) + floatOf(src)); break;
+            case '-': dst.setFloat(floatOf(dst) - floatOf(src)); break;
+            case '*': dst.setFloat(floatOf(dst) * floatOf(src)); break;
+            case '/': dst.setFloat(floatOf(dst) / floatOf(src)); break;
             default: return Result.ERR;
         }
         return Result.OK;
@@ -679,11 +2889,11 @@ public class NSASM {
 
     private Result calcStr(Register dst, Register src, char type) {
         switch (type) {
-            case '+': dst.strPtr = dst.strPtr + (int) convValue(src.data, RegType.INT); break;
-            case '-': dst.strPtr = dst.strPtr - (int) convValue(src.data, RegType.INT); break;
+            case '+': dst.strPtr = dst.strPtr + intOf(src); break;
+            case '-': dst.strPtr = dst.strPtr - intOf(src); break;
             default: return Result.ERR;
         }
-        if (dst.strPtr >= dst.data.toString().length()) dst.strPtr = dst.data.toString().length() - 1;
+        if (dst.strPtr >= dst.length()) dst.strPtr = dst.length() - 1;
         if (dst.strPtr < 0) dst.strPtr = 0;
         return Result.OK;
     }
@@ -702,7 +2912,54 @@ public class NSASM {
         return Result.OK;
     }
 
+    private Result readPort(Register dst, int addr) {
+        Port port = ports.get(addr);
+        if (port == null) return Result.ERR;
+        Object value;
+        try {
+            value = port.read(dst.type);
+        } catch (IOException e) {
+            return Result.ERR;
+        }
+        stateReg.setInt(value != null ? 1 : 0);
+        stateReg.type = RegType.INT;
+        stateReg.readOnly = false;
+        if (value == null) return Result.OK;
+        dst.setData(value);
+        dst.strPtr = 0;
+        return Result.OK;
+    }
+
+    private Result writePort(int addr, Register src) {
+        Port port = ports.get(addr);
+        if (port == null) return Result.ERR;
+        Object value;
+        switch (src.type) {
+            case STR: value = ((String) src.getData()).substring(src.strPtr); break;
+            case CHAR: case INT: case FLOAT: value = src.getData(); break;
+            default: return Result.ERR;
+        }
+        if (value instanceof Character && (char) value > 0xFF) return Result.ERR; //A CHAR is one byte in the file
+        try {
+            port.write(value);
+        } catch (IOException e) {
+            return Result.ERR;
+        }
+        return Result.OK;
+    }
+
     protected void loadFuncList() {
+        funcList.nativeLevel += 1;
+        loadNativeFuncList();
+        funcList.nativeLevel -= 1;
+    }
+
+    private OrderedMap orderedMap() {
+        if (useReg == null || useReg.type != RegType.MAP) return null;
+        return useReg.getData() instanceof OrderedMap ? (OrderedMap) useReg.getData() : null;
+    }
+
+    private void loadNativeFuncList() {
         funcList.put("rem", (dst, src, ext) -> {
             return Result.OK;
         });
@@ -710,90 +2967,83 @@ public class NSASM {
         funcList.put("var", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.VAR)) return Result.ERR;
-            if (heapManager.containsKey((String) dst.data)) return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.VAR)) return Result.ERR;
+            if (isDefined((String) dst.getData())) return Result.ERR;
             if (src.type != RegType.STR) src.readOnly = false;
-            heapManager.put((String) dst.data, src);
-            return Result.OK;
+            return define((String) dst.getData(), src);
         });
 
         funcList.put("int", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.VAR)) return Result.ERR;
-            if (heapManager.containsKey((String) dst.data)) return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.VAR)) return Result.ERR;
+            if (isDefined((String) dst.getData())) return Result.ERR;
             if (src.type != RegType.INT) return Result.ERR;
 
             src.readOnly = false;
-            heapManager.put((String) dst.data, src);
-            return Result.OK;
+            return define((String) dst.getData(), src);
         });
 
         funcList.put("char", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.VAR)) return Result.ERR;
-            if (heapManager.containsKey((String) dst.data)) return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.VAR)) return Result.ERR;
+            if (isDefined((String) dst.getData())) return Result.ERR;
             if (src.type != RegType.CHAR) return Result.ERR;
 
             src.readOnly = false;
-            heapManager.put((String) dst.data, src);
-            return Result.OK;
+            return define((String) dst.getData(), src);
         });
 
         funcList.put("float", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.VAR)) return Result.ERR;
-            if (heapManager.containsKey((String) dst.data)) return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.VAR)) return Result.ERR;
+            if (isDefined((String) dst.getData())) return Result.ERR;
             if (src.type != RegType.FLOAT) return Result.ERR;
 
             src.readOnly = false;
-            heapManager.put((String) dst.data, src);
-            return Result.OK;
+            return define((String) dst.getData(), src);
         });
 
         funcList.put("str", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.VAR)) return Result.ERR;
-            if (heapManager.containsKey((String) dst.data)) return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.VAR)) return Result.ERR;
+            if (isDefined((String) dst.getData())) return Result.ERR;
             if (src.type != RegType.STR) return Result.ERR;
 
             src.readOnly = true;
-            heapManager.put((String) dst.data, src);
-            return Result.OK;
+            return define((String) dst.getData(), src);
         });
 
         funcList.put("code", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.VAR)) return Result.ERR;
-            if (heapManager.containsKey((String) dst.data)) return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.VAR)) return Result.ERR;
+            if (isDefined((String) dst.getData())) return Result.ERR;
             if (src.type != RegType.CODE) return Result.ERR;
 
             src.readOnly = false;
-            heapManager.put((String) dst.data, src);
-            return Result.OK;
+            return define((String) dst.getData(), src);
         });
 
         funcList.put("map", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.VAR)) return Result.ERR;
-            if (heapManager.containsKey((String) dst.data)) return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.VAR)) return Result.ERR;
+            if (isDefined((String) dst.getData())) return Result.ERR;
             if (src.type != RegType.MAP) return Result.ERR;
 
             src.readOnly = false;
-            heapManager.put((String) dst.data, src);
-            return Result.OK;
+            return define((String) dst.getData(), src);
         });
 
         funcList.put("mov", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -801,11 +3051,9 @@ public class NSASM {
             if (dst == null) return Result.ERR;
             if (dst.readOnly) return Result.ERR;
             if (dst.type == RegType.CHAR && src.type == RegType.STR) {
-                dst.data = ((String) src.data).charAt(src.strPtr);
+                dst.setChar(src.charAt(src.strPtr));
             } else if (dst.type == RegType.STR && src.type == RegType.CHAR) {
-                char[] array = ((String) dst.data).toCharArray();
-                array[dst.strPtr] = (char) src.data;
-                dst.data = new String(array);
+                dst.text().setCharAt(dst.strPtr, (char) src.getData());
             } else {
                 dst.copy(src);
                 if (dst.readOnly) dst.readOnly = false;
@@ -816,8 +3064,8 @@ public class NSASM {
         funcList.put("push", (dst, src, ext) -> {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (stackManager.size() >= stackSize) return Result.ERR;
-            stackManager.push(new Register(dst));
+            if (stackTop >= stackSize) return Result.ERR;
+            stackManager[stackTop++].copy(dst);
             return Result.OK;
         });
 
@@ -825,7 +3073,8 @@ public class NSASM {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
             if (dst.readOnly) return Result.ERR;
-            dst.copy(stackManager.pop());
+            if (stackTop <= 0) return Result.ERR;
+            dst.copy(stackManager[--stackTop]);
             return Result.OK;
         });
 
@@ -833,110 +3082,177 @@ public class NSASM {
             if (src == null) {
                 src = new Register();
                 src.type = RegType.INT;
-                src.data = 0x00;
+                src.setData(0x00);
                 src.readOnly = true;
             }
             if (dst == null) return Result.ERR;
 			if (src.type != RegType.INT) return Result.ERR;
             String buf; Register reg;
-            switch ((int) src.data) {
+            switch ((int) src.getData()) {
                 case 0x00:
+                case 0x01:
                     if (dst.readOnly && dst.type != RegType.STR) return Result.ERR;
-                    buf = Util.scan();
-                    switch (dst.type) {
-                        case INT:
-                            reg = getRegister(buf);
-                            if (reg == null) return Result.OK;
-                            if (reg.type != RegType.INT) return Result.OK;
-                            dst.data = reg.data;
-                            break;
-                        case CHAR:
-                            if (buf.length() < 1) return Result.OK;
-                            dst.data = buf.charAt(0);
-                            break;
-                        case FLOAT:
-                            reg = getRegister(buf);
-                            if (reg == null) return Result.OK;
-                            if (reg.type != RegType.FLOAT) return Result.OK;
-                            dst.data = reg.data;
-                            break;
-                        case STR:
-                            if (buf.length() < 1) return Result.OK;
-                            dst.data = buf;
-                            dst.strPtr = 0;
-                            break;
-                    }
+                    flush();
+                    buf = (int) src.getData() == 0x01 ? input.readToken() : input.readLine();
                     break;
                 case 0xFF:
-                    Util.print("[DEBUG] <<< ");
+                    debug.print("[DEBUG] <<< ");
                     if (dst.readOnly && dst.type != RegType.STR) return Result.ERR;
-                    buf = Util.scan();
-                    switch (dst.type) {
-                        case INT:
-                            reg = getRegister(buf);
-                            if (reg == null) return Result.OK;
-                            if (reg.type != RegType.INT) return Result.OK;
-                            dst.data = reg.data;
-                            break;
-                        case CHAR:
-                            if (buf.length() < 1) return Result.OK;
-                            dst.data = buf.charAt(0);
-                            break;
-                        case FLOAT:
-                            reg = getRegister(buf);
-                            if (reg == null) return Result.OK;
-                            if (reg.type != RegType.FLOAT) return Result.OK;
-                            dst.data = reg.data;
-                            break;
-                        case STR:
-                            if (buf.length() < 1) return Result.OK;
-                            dst.data = buf;
-                            dst.strPtr = 0;
-                            break;
-                    }
+                    flush();
+                    buf = input.readLine();
                     break;
                 default:
-                    return Result.ERR;
+                    if (dst.readOnly && dst.type != RegType.STR) return Result.ERR;
+                    return readPort(dst, (int) src.getData());
+            }
+            if (buf == null) return Result.ERR;
+            switch (dst.type) {
+                case INT:
+                    reg = getRegister(buf);
+                    if (reg == null) return Result.OK;
+                    if (reg.type != RegType.INT) return Result.OK;
+                    dst.setData(reg.getData());
+                    break;
+                case CHAR:
+                    if (buf.length() < 1) return Result.OK;
+                    dst.setData(buf.charAt(0));
+                    break;
+                case FLOAT:
+                    reg = getRegister(buf);
+                    if (reg == null) return Result.OK;
+                    if (reg.type != RegType.FLOAT) return Result.OK;
+                    dst.setData(reg.getData());
+                    break;
+                case STR:
+                    if (buf.length() < 1) return Result.OK;
+                    dst.setData(buf);
+                    dst.strPtr = 0;
+                    break;
+            }
+            return Result.OK;
+        });
+
+        funcList.put("opn", (dst, src, ext) -> {
+            if (dst == null || src == null) return Result.ERR;
+            if (dst.type != RegType.INT || src.type != RegType.STR) return Result.ERR;
+            if (ext != null && ext.type != RegType.STR) return Result.ERR;
+            int addr = (int) dst.getData();
+            if (addr == 0x00 || addr == 0x01 || addr == 0xFF) return Result.ERR;
+            if (funcList.func(OP_CLS).run(dst, null, null) == Result.ERR) return Result.ERR;
+            try {
+                ports.put(addr, new Port(src.getData().toString(), ext == null ? "r" : ext.getData().toString()));
+            } catch (IOException e) {
+                return Result.ERR;
             }
             return Result.OK;
         });
 
+        funcList.put("cls", (dst, src, ext) -> {
+            if (dst == null || src != null) return Result.ERR;
+            if (dst.type != RegType.INT) return Result.ERR;
+            Port port = ports.remove((int) dst.getData());
+            if (port == null) return Result.OK;
+            try {
+                port.close();
+            } catch (IOException e) {
+                return Result.ERR;
+            }
+            return Result.OK;
+        });
+
+        funcList.put("seek", (dst, src, ext) -> {
+            if (dst == null || src == null) return Result.ERR;
+            if (dst.type != RegType.INT || src.type != RegType.INT) return Result.ERR;
+            if (ext != null && ext.type != RegType.INT) return Result.ERR;
+            Port port = ports.get((int) dst.getData());
+            if (port == null) return Result.ERR;
+            long offset = ext == null ? (int) src.getData() : //seek addr, hi, lo past 2GB
+                          (long) (int) src.getData() << 32 | (int) ext.getData() & 0xFFFFFFFFL;
+            if (offset < 0) return Result.ERR;
+            try {
+                port.seek(offset);
+            } catch (IOException e) {
+                return Result.ERR;
+            }
+            return Result.OK;
+        });
+
+        funcList.put("tell", (dst, src, ext) -> {
+            if (dst == null || src == null) return Result.ERR;
+            Register addr = ext == null ? src : ext; //tell hi, lo, addr past 2GB
+            if (addr.type != RegType.INT) return Result.ERR;
+            Port port = ports.get((int) addr.getData());
+            if (port == null) return Result.ERR;
+            long offset = port.tell();
+            if (ext == null && offset > Integer.MAX_VALUE) return Result.ERR;
+            Register reg = new Register();
+            reg.type = RegType.INT;
+            reg.readOnly = true;
+            reg.setInt((int) offset);
+            if (ext == null) return funcList.func(OP_MOV).run(dst, reg, null);
+            if (funcList.func(OP_MOV).run(src, reg, null) == Result.ERR) return Result.ERR;
+            reg.setInt((int) (offset >>> 32));
+            return funcList.func(OP_MOV).run(dst, reg, null);
+        });
+
+        funcList.put("inl", (dst, src, ext) -> {
+            if (src != null) return Result.ERR;
+            if (dst == null) return Result.ERR;
+            if (dst.readOnly) return Result.ERR;
+            flush();
+            Map map = new Map();
+            String line;
+            for (int i = 0; (line = input.readLine()) != null; i++) {
+                Register key = new Register();
+                key.type = RegType.INT;
+                key.readOnly = true;
+                key.setInt(i);
+                Register value = new Register();
+                value.type = RegType.STR;
+                value.setData(line);
+                map.put(key, value);
+            }
+            dst.type = RegType.MAP;
+            dst.setData(map);
+            return Result.OK;
+        });
+
         funcList.put("out", (dst, src, ext) -> {
             if (dst == null) return Result.ERR;
             if (src == null) {
                 if (dst.type == RegType.STR) {
-                    Util.print(((String) dst.data).substring(dst.strPtr));
+                    out.print(((String) dst.getData()).substring(dst.strPtr));
                 } else if (dst.type == RegType.CODE) {
                     Register register = eval(dst);
                     if (register == null) return Result.ERR;
-                    Util.print(register.data);
-                } else Util.print(dst.data);
+                    out.print(register.getData());
+                } else out.print(dst.getData());
             } else {
                 if (dst.type != RegType.INT)
                     return Result.ERR;
-                switch ((int) dst.data) {
+                switch ((int) dst.getData()) {
                     case 0x00:
                         if (src.type == RegType.STR) {
-                            Util.print(((String) src.data).substring(src.strPtr));
+                            out.print(((String) src.getData()).substring(src.strPtr));
                         } else if (src.type == RegType.CODE) {
                             Register register = eval(src);
                             if (register == null) return Result.ERR;
-                            Util.print(register.data);
-                        } else Util.print(src.data);
+                            out.print(register.getData());
+                        } else out.print(src.getData());
                         break;
                     case 0xFF:
-                        Util.print("[DEBUG] >>> ");
+                        debug.print("[DEBUG] >>> ");
                         if (src.type == RegType.STR) {
-                            Util.print(((String) src.data).substring(src.strPtr));
+                            debug.print(((String) src.getData()).substring(src.strPtr));
                         } else if (src.type == RegType.CODE) {
                             Register register = eval(src);
                             if (register == null) return Result.ERR;
-                            Util.print(register.data);
-                        } else Util.print(src.data);
-                        Util.print('\n');
+                            debug.print(register.getData());
+                        } else debug.print(src.getData());
+                        debug.print('\n');
                         break;
                     default:
-                        return Result.ERR;
+                        return writePort((int) dst.getData(), src);
                 }
             }
             return Result.OK;
@@ -946,73 +3262,73 @@ public class NSASM {
             if (dst == null) return Result.ERR;
             if (src != null) {
                 if (ext != null) {
-                    Util.print(
-                        dst.data.toString() +
-                        src.data.toString() +
-                        ext.data.toString() +
+                    out.print(
+                        dst.getData().toString() +
+                        src.getData().toString() +
+                        ext.getData().toString() +
                         '\n'
                     );
                     return Result.OK;
                 }
                 if (dst.type == RegType.STR) {
                     if (dst.readOnly) return Result.ERR;
-                    if (src.type == RegType.CHAR && src.data.equals('\b')) {
-                        if (dst.data.toString().contains("\n")) {
-                            String[] parts = dst.data.toString().split("\n");
+                    if (src.type == RegType.CHAR && src.getData().equals('\b')) {
+                        if (dst.getData().toString().contains("\n")) {
+                            String[] parts = dst.getData().toString().split("\n");
                             String res = "";
                             for (int i = 0; i < parts.length - 1; i++) {
                                 res = res.concat(parts[i]);
                                 if (i < parts.length - 2) res = res.concat("\n");
                             }
-                            dst.data = res;
+                            dst.setData(res);
                         }
                     } else if (src.type == RegType.CODE) {
                         Register register = eval(src);
                         if (register == null) return Result.ERR;
-                        dst.data = dst.data.toString().concat('\n' + register.data.toString());
+                        dst.setData(dst.getData().toString().concat('\n' + register.getData().toString()));
                     } else if (src.type == RegType.STR) {
-                        dst.data = dst.data.toString().concat('\n' + src.data.toString().substring(src.strPtr));
+                        dst.setData(dst.getData().toString().concat('\n' + src.getData().toString().substring(src.strPtr)));
                     } else return Result.ERR;
                 } else if (dst.type == RegType.CODE) {
                     if (dst.readOnly) return Result.ERR;
-                    if (src.type == RegType.CHAR && src.data.equals('\b')) {
-                        if (dst.data.toString().contains("\n")) {
-                            String[] parts = dst.data.toString().split("\n");
+                    if (src.type == RegType.CHAR && src.getData().equals('\b')) {
+                        if (dst.getData().toString().contains("\n")) {
+                            String[] parts = dst.getData().toString().split("\n");
                             String res = "";
                             for (int i = 0; i < parts.length - 1; i++) {
                                 res = res.concat(parts[i]);
                                 if (i < parts.length - 2) res = res.concat("\n");
                             }
-                            dst.data = res;
+                            dst.setData(res);
                         }
                     } else if (src.type == RegType.CODE) {
-                        dst.data = dst.data.toString().concat('\n' + src.data.toString());
+                        dst.setData(dst.getData().toString().concat('\n' + src.getData().toString()));
                     } else if (src.type == RegType.STR) {
-                        dst.data = dst.data.toString().concat('\n' + src.data.toString().substring(src.strPtr));
+                        dst.setData(dst.getData().toString().concat('\n' + src.getData().toString().substring(src.strPtr)));
                     } else return Result.ERR;
                 } else return Result.ERR;
             } else {
                 if (dst == null) return Result.ERR;
                 if (dst.type == RegType.STR) {
-                    Util.print(((String) dst.data).substring(dst.strPtr) + '\n');
+                    out.print(((String) dst.getData()).substring(dst.strPtr) + '\n');
                 } else if (dst.type == RegType.CODE) {
                     Register register = eval(dst);
                     if (register == null) return Result.ERR;
-                    Util.print(register.data.toString() + '\n');
-                } else Util.print(dst.data.toString() + '\n');
+                    out.print(register.getData().toString() + '\n');
+                } else out.print(dst.getData().toString() + '\n');
             }
             return Result.OK;
         });
 
         funcList.put("add", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("add").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_ADD).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1029,22 +3345,18 @@ public class NSASM {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
             if (dst.readOnly) return Result.ERR;
-            Register register = new Register();
-            register.readOnly = false;
-            register.type = RegType.CHAR;
-            register.data = 1;
-            return calc(dst, register, '+');
+            return calc(dst, oneReg, '+');
         });
 
         funcList.put("sub", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("sub").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_SUB).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1061,22 +3373,18 @@ public class NSASM {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
             if (dst.readOnly) return Result.ERR;
-            Register register = new Register();
-            register.readOnly = false;
-            register.type = RegType.CHAR;
-            register.data = 1;
-            return calc(dst, register, '-');
+            return calc(dst, oneReg, '-');
         });
 
         funcList.put("mul", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mul").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_MUL).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1091,13 +3399,13 @@ public class NSASM {
 
         funcList.put("div", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("div").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_DIV).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1112,13 +3420,13 @@ public class NSASM {
 
         funcList.put("mod", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mod").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_MOD).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1133,13 +3441,13 @@ public class NSASM {
 
         funcList.put("and", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("and").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_AND).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1154,13 +3462,13 @@ public class NSASM {
 
         funcList.put("or", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("or").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_OR).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1175,13 +3483,13 @@ public class NSASM {
 
         funcList.put("xor", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("xor").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_XOR).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1203,13 +3511,13 @@ public class NSASM {
 
         funcList.put("shl", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("shl").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_SHL).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1224,13 +3532,13 @@ public class NSASM {
 
         funcList.put("shr", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("shr").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_SHR).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1246,13 +3554,13 @@ public class NSASM {
         funcList.put("cmp", (dst, src, ext) -> {
             if (src == null) return Result.ERR;
             if (dst == null) return Result.ERR;
-            if (funcList.get("mov").run(stateReg, dst, null) == Result.ERR)
+            if (funcList.func(OP_MOV).run(stateReg, dst, null) == Result.ERR)
                 return Result.ERR;
             if (src.type == RegType.CODE) {
-                if (funcList.get("sub").run(stateReg, eval(src), null) == Result.ERR)
+                if (funcList.func(OP_SUB).run(stateReg, eval(src), null) == Result.ERR)
                     return Result.ERR;
             } else {
-                if (funcList.get("sub").run(stateReg, src, null) == Result.ERR)
+                if (funcList.func(OP_SUB).run(stateReg, src, null) == Result.ERR)
                     return Result.ERR;
 			}
 
@@ -1263,16 +3571,16 @@ public class NSASM {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
             if (dst.type == RegType.CODE) {
-                if (funcList.get("mov").run(stateReg, eval(dst), null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(stateReg, eval(dst), null) == Result.ERR)
                     return Result.ERR;
             } else {
-                if (funcList.get("mov").run(stateReg, dst, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(stateReg, dst, null) == Result.ERR)
                     return Result.ERR;
 			}
 
             Register reg = new Register();
-            reg.type = dst.type; reg.readOnly = false; reg.data = 0;
-            if (funcList.get("sub").run(stateReg, reg, null) == Result.ERR)
+            reg.type = dst.type; reg.readOnly = false; reg.setData(0);
+            if (funcList.func(OP_SUB).run(stateReg, reg, null) == Result.ERR)
                 return Result.ERR;
             return Result.OK;
         });
@@ -1281,50 +3589,34 @@ public class NSASM {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
             if (dst.type != RegType.STR) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.TAG)) return Result.ERR;
-            String tag = (String) dst.data;
-            String segBuf, lineBuf;
-
-            for (int seg = 0; seg < code.keySet().size(); seg++) {
-                segBuf = (String) (code.keySet().toArray())[seg];
-                if (code.get(segBuf) == null) continue;
-                for (int line = 0; line < code.get(segBuf).length; line++) {
-                    lineBuf = code.get(segBuf)[line];
-                    if (tag.equals(lineBuf)) {
-                        tmpSeg = seg;
-                        tmpCnt = line;
-                        return Result.OK;
-                    }
-                }
-            }
-
-            return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.TAG)) return Result.ERR;
+            return jump((String) dst.getData());
         });
 
         funcList.put("jz", (dst, src, ext) -> {
-            if ((float) convValue(stateReg.data, RegType.FLOAT) == 0) {
-                return funcList.get("jmp").run(dst, src, null);
+            if (branch(OP_JZ)) {
+                return funcList.func(OP_JMP).run(dst, src, null);
             }
             return Result.OK;
         });
 
         funcList.put("jnz", (dst, src, ext) -> {
-            if ((float) convValue(stateReg.data, RegType.FLOAT) != 0) {
-                return funcList.get("jmp").run(dst, src, null);
+            if (branch(OP_JNZ)) {
+                return funcList.func(OP_JMP).run(dst, src, null);
             }
             return Result.OK;
         });
 
         funcList.put("jg", (dst, src, ext) -> {
-            if ((float) convValue(stateReg.data, RegType.FLOAT) > 0) {
-                return funcList.get("jmp").run(dst, src, null);
+            if (branch(OP_JG)) {
+                return funcList.func(OP_JMP).run(dst, src, null);
             }
             return Result.OK;
         });
 
         funcList.put("jl", (dst, src, ext) -> {
-            if ((float) convValue(stateReg.data, RegType.FLOAT) < 0) {
-                return funcList.get("jmp").run(dst, src, null);
+            if (branch(OP_JL)) {
+                return funcList.func(OP_JMP).run(dst, src, null);
             }
             return Result.OK;
         });
@@ -1338,18 +3630,28 @@ public class NSASM {
             if (dst.readOnly) return Result.ERR;
             if (src.type != RegType.INT) return Result.ERR;
             if (ext.type != RegType.STR) return Result.ERR;
-            if (!verifyWord((String) ext.data, WordType.TAG)) return Result.ERR;
+            if (!verifyWord((String) ext.getData(), WordType.TAG)) return Result.ERR;
+
+            if (dst.kind() == TAG_INT && src.kind() == TAG_INT && isNativeLoop()) {
+                //inc or dec, cmp and jnz in one step
+                int value = (int) dst.raw() + ((int) src.raw() > 0 ? 1 : -1);
+                dst.setInt(value);
+                stateReg.copy(dst);
+                stateReg.setInt(value - (int) src.raw());
+                if (value != (int) src.raw()) return jump((String) ext.getData());
+                return Result.OK;
+            }
 
-            if ((int)src.data > 0) {
-                if (funcList.get("inc").run(dst, null, null) == Result.ERR)
+            if (src.intValue() > 0) {
+                if (funcList.func(OP_INC).run(dst, null, null) == Result.ERR)
                     return Result.ERR;
             } else {
-                if (funcList.get("dec").run(dst, null, null) == Result.ERR)
+                if (funcList.func(OP_DEC).run(dst, null, null) == Result.ERR)
                     return Result.ERR;
             }
-            if (funcList.get("cmp").run(dst, src, null) == Result.ERR)
+            if (funcList.func(OP_CMP).run(dst, src, null) == Result.ERR)
                 return Result.ERR;
-            if (funcList.get("jnz").run(ext, null, null) == Result.ERR)
+            if (funcList.func(OP_JNZ).run(ext, null, null) == Result.ERR)
                 return Result.ERR;
 
             return Result.OK;
@@ -1389,35 +3691,24 @@ public class NSASM {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
             if (dst.type != RegType.STR) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.SEG)) return Result.ERR;
-            String segBuf, target = (String) dst.data;
-            for (int seg = 0; seg < code.keySet().size(); seg++) {
-                segBuf = (String) (code.keySet().toArray())[seg];
-                if (target.equals(segBuf)) {
-                    tmpSeg = seg;
-                    tmpCnt = 0;
-                    return Result.OK;
-                }
-            }
-            return Result.ERR;
+            if (!verifyWord((String) dst.getData(), WordType.SEG)) return Result.ERR;
+            Integer seg = segTable.get((String) dst.getData());
+            if (seg == null) return Result.ERR;
+            tmpSeg = seg;
+            tmpCnt = 0;
+            return Result.OK;
         });
 
         funcList.put("call", (dst, src, ext) -> {
             if (src != null) return Result.ERR;
             if (dst == null) return Result.ERR;
             if (dst.type != RegType.STR) return Result.ERR;
-            if (!verifyWord((String) dst.data, WordType.SEG)) return Result.ERR;
-            String segBuf, target = (String) dst.data;
-            for (int seg = 0; seg < code.keySet().size(); seg++) {
-                segBuf = (String) (code.keySet().toArray())[seg];
-                if (target.equals(segBuf)) {
-                    tmpSeg = seg;
-                    tmpCnt = 0;
-                    backupReg.push(progSeg);
-                    backupReg.push(progCnt);
-                    return Result.OK;
-                }
-            }
+            if (!verifyWord((String) dst.getData(), WordType.SEG)) return Result.ERR;
+            Integer seg = segTable.get((String) dst.getData());
+            if (seg == null) return Result.OK;
+            if (pushFrame() == Result.ERR) return Result.ERR;
+            tmpSeg = seg;
+            tmpCnt = 0;
             return Result.OK;
         });
 
@@ -1432,14 +3723,15 @@ public class NSASM {
                 Register res = eval(dst);
                 if (res == null) return Result.ERR;
                 if (res.type != RegType.STR) return Result.ERR;
-                path = res.data.toString();
-            } else path = dst.data.toString();
+                path = res.getData().toString();
+            } else path = dst.getData().toString();
 
             String code = Util.read(path);
             if (code == null) return Result.ERR;
             String[][] segs = Util.getSegments(code);
+            reusable = false;
             if (appendCode(segs) == Result.ERR) {
-                Util.print("At file: " + path + "\n");
+                out.print("At file: " + path + "\n");
                 return Result.ERR;
             }
 
@@ -1467,12 +3759,13 @@ public class NSASM {
             if (src.type != RegType.CODE) return Result.ERR;
             if (ext.type != RegType.MAP) return Result.ERR;
 
-            if (ext.data instanceof Map) {
-                Map map = (Map) ext.data;
+            if (ext.getData() instanceof Map) {
+                Map map = (Map) ext.getData();
                 if (!map.isEmpty()) {
                     int cnt = map.size();
-                    String[][] code = Util.getSegments(src.data.toString());
-                    ArrayList<Register> keys = new ArrayList<>(map.keySet());
+                    String[][] code = Util.getSegments(src.getData().toString());
+                    ArrayList<Register> keys = new ArrayList<>(cnt);
+                    for (java.util.Map.Entry<Register, Register> i : map.entries()) keys.add(i.getKey());
 
                     Thread[] threads = new Thread[cnt];
                     SafePool<Integer> signPool = new SafePool<>();
@@ -1502,14 +3795,14 @@ public class NSASM {
                     for (int i = 0; i < cnt; i++)
                         threads[i].run();
                     while (signPool.count() < cnt)
-                        funcList.get("nop").run(null, null, null);
+                        funcList.func(OP_NOP).run(null, null, null);
 
                     dst.type = RegType.MAP;
                     dst.readOnly = false;
                     Map res = new Map();
                     for (int i = 0; i < cnt; i++)
                         res.put(keys.get(i), outputPool.get(i));
-                    dst.data = res;
+                    dst.setData(res);
                 }
             }
 
@@ -1527,9 +3820,9 @@ public class NSASM {
 
         funcList.put("put", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("use").run(dst, null, null) == Result.ERR)
+                if (funcList.func(OP_USE).run(dst, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("put").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_PUT).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1540,14 +3833,10 @@ public class NSASM {
             if (dst.type == RegType.CODE) {
                 Register reg = eval(dst);
                 if (reg == null) return Result.ERR;
-                if (!(reg.data instanceof Map)) return Result.ERR;
-                if (((Map)useReg.data).containsKey(reg))
-                    ((Map)useReg.data).remove(reg);
-                ((Map)useReg.data).put(new Register(reg), new Register(src));
+                if (!(reg.getData() instanceof Map)) return Result.ERR;
+                if (!((Map)useReg.getData()).renew(reg, new Register(src))) return Result.ERR;
             } else {
-                if (((Map)useReg.data).containsKey(dst))
-                    ((Map)useReg.data).remove(dst);
-                ((Map)useReg.data).put(new Register(dst), new Register(src));
+                if (!((Map)useReg.getData()).renew(dst, new Register(src))) return Result.ERR;
             }
 
             return Result.OK;
@@ -1555,9 +3844,9 @@ public class NSASM {
 
         funcList.put("get", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("use").run(dst, null, null) == Result.ERR)
+                if (funcList.func(OP_USE).run(dst, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("get").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_GET).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1570,24 +3859,26 @@ public class NSASM {
             if (src.type == RegType.CODE) {
                 Register reg = eval(src);
                 if (reg == null) return Result.ERR;
-                if (!(reg.data instanceof Map)) return Result.ERR;
-                if (!((Map)useReg.data).containsKey(reg)) return Result.ERR;
-                return funcList.get("mov").run(dst, ((Map)useReg.data).get(reg), null);
+                if (!(reg.getData() instanceof Map)) return Result.ERR;
+                Register value = ((Map)useReg.getData()).get(reg);
+                if (value == null) return Result.ERR;
+                return funcList.func(OP_MOV).run(dst, value, null);
             } else {
-                if (!((Map)useReg.data).containsKey(src)) return Result.ERR;
-                return funcList.get("mov").run(dst, ((Map)useReg.data).get(src), null);
+                Register value = ((Map)useReg.getData()).get(src);
+                if (value == null) return Result.ERR;
+                return funcList.func(OP_MOV).run(dst, value, null);
             }
         });
 
         funcList.put("cat", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("cat").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_CAT).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1598,18 +3889,15 @@ public class NSASM {
                 case STR:
                     if (src.type != RegType.STR)
                         return Result.ERR;
-                    dst.data = (String)dst.data + (String)src.data;
+                    dst.text().append((String) src.getData());
                     break;
                 case MAP:
                     if (src.type != RegType.MAP)
                         return Result.ERR;
-                    if (!(dst.data instanceof Map)) return Result.ERR;
-                    if (!(src.data instanceof Map)) return Result.ERR;
-                for (java.util.Map.Entry<Register, Register> i : ((Map) src.data).entrySet()) {
-                    if (((Map)dst.data).containsKey(i.getKey()))
-                        ((Map)dst.data).remove(i.getKey());
-                    ((Map)dst.data).put(i.getKey(), i.getValue());
-                }
+                    if (!(dst.getData() instanceof Map)) return Result.ERR;
+                    if (!(src.getData() instanceof Map)) return Result.ERR;
+                for (java.util.Map.Entry<Register, Register> i : ((Map) src.getData()).entries())
+                    if (!((Map)dst.getData()).renew(i.getKey(), i.getValue())) return Result.ERR;
                 break;
                 default:
                     return Result.ERR;
@@ -1619,13 +3907,13 @@ public class NSASM {
 
         funcList.put("dog", (dst, src, ext) -> {
             if (ext != null) {
-                if (funcList.get("push").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_PUSH).run(src, null, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("dog").run(src, ext, null) == Result.ERR)
+                if (funcList.func(OP_DOG).run(src, ext, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("mov").run(dst, src, null) == Result.ERR)
+                if (funcList.func(OP_MOV).run(dst, src, null) == Result.ERR)
                     return Result.ERR;
-                if (funcList.get("pop").run(src, null, null) == Result.ERR)
+                if (funcList.func(OP_POP).run(src, null, null) == Result.ERR)
                     return Result.ERR;
                 return Result.OK;
             }
@@ -1636,14 +3924,13 @@ public class NSASM {
                 case STR:
                     if (src.type != RegType.STR)
                         return Result.ERR;
-                    dst.data = ((String)dst.data).replace((String)src.data, "");
+                    dst.setData(((String)dst.getData()).replace((String)src.getData(), ""));
                     break;
                 case MAP:
                     if (src.type != RegType.MAP)
                         return Result.ERR;
-                    for (java.util.Map.Entry<Register, Register> i : ((Map) src.data).entrySet())
-                    if (((Map)dst.data).containsKey(i.getKey()))
-                        ((Map)dst.data).remove(i.getKey());
+                    for (java.util.Map.Entry<Register, Register> i : ((Map) src.getData()).entries())
+                        ((Map)dst.getData()).remove(i.getKey());
                     break;
                 default:
                     return Result.ERR;
@@ -1660,16 +3947,16 @@ public class NSASM {
             reg.type = RegType.STR;
             reg.readOnly = true;
             switch (src.type) {
-                case INT: reg.data = "int"; break;
-                case CHAR: reg.data = "char"; break;
-                case FLOAT: reg.data = "float"; break;
-                case STR: reg.data = "str"; break;
-                case CODE: reg.data = "code"; break;
-                case MAP: reg.data = "map"; break;
-                case PAR: reg.data = "par"; break;
-                case NUL: reg.data = "nul"; break;
+                case INT: reg.setData("int"); break;
+                case CHAR: reg.setData("char"); break;
+                case FLOAT: reg.setData("float"); break;
+                case STR: reg.setData("str"); break;
+                case CODE: reg.setData("code"); break;
+                case MAP: reg.setData("map"); break;
+                case PAR: reg.setData("par"); break;
+                case NUL: reg.setData("nul"); break;
             }
-            return funcList.get("mov").run(dst, reg, null);
+            return funcList.func(OP_MOV).run(dst, reg, null);
         });
 
         funcList.put("len", (dst, src, ext) -> {
@@ -1682,15 +3969,15 @@ public class NSASM {
             {
                 if (useReg == null) return Result.ERR;
                 if (useReg.type != RegType.MAP) return Result.ERR;
-                if (!(useReg.data instanceof Map)) return Result.ERR;
-                reg.data = ((Map)useReg.data).size();
+                if (!(useReg.getData() instanceof Map)) return Result.ERR;
+                reg.setData(((Map)useReg.getData()).size());
             }
             else
             {
                 if (src.type != RegType.STR) return Result.ERR;
-                reg.data = ((String)src.data).length();
+                reg.setData(src.length());
             }
-            return funcList.get("mov").run(dst, reg, null);
+            return funcList.func(OP_MOV).run(dst, reg, null);
         });
 
         funcList.put("ctn", (dst, src, ext) -> {
@@ -1702,16 +3989,125 @@ public class NSASM {
             {
                 if (useReg == null) return Result.ERR;
                 if (useReg.type != RegType.MAP) return Result.ERR;
-                if (!(useReg.data instanceof Map)) return Result.ERR;
-                reg.data = ((Map)useReg.data).containsKey(dst) ? 1 : 0;
+                if (!(useReg.getData() instanceof Map)) return Result.ERR;
+                reg.setData(((Map)useReg.getData()).containsKey(dst) ? 1 : 0);
             }
             else
             {
                 if (src.type != RegType.STR) return Result.ERR;
                 if (dst.type != RegType.STR) return Result.ERR;
-                reg.data = ((String)dst.data).contains((String)src.data) ? 1 : 0;
+                reg.setData(((String)dst.getData()).contains((String)src.getData()) ? 1 : 0);
+            }
+            return funcList.func(OP_MOV).run(stateReg, reg, null);
+        });
+
+        funcList.put("each", (dst, src, ext) -> {
+            if (src != null) return Result.ERR;
+            if (dst != null && funcList.func(OP_USE).run(dst, null, null) == Result.ERR)
+                return Result.ERR;
+            if (useReg == null) return Result.ERR;
+            if (useReg.type != RegType.MAP) return Result.ERR;
+            if (!(useReg.getData() instanceof Map)) return Result.ERR;
+            Map map = (Map) useReg.getData();
+            map.cursor = map.new Cursor();
+            return Result.OK;
+        });
+
+        funcList.put("next", (dst, src, ext) -> {
+            if (ext != null) {
+                if (funcList.func(OP_USE).run(dst, null, null) == Result.ERR)
+                    return Result.ERR;
+                return funcList.func(OP_NEXT).run(src, ext, null);
             }
-            return funcList.get("mov").run(stateReg, reg, null);
+            if (dst == null) return Result.ERR;
+            if (useReg == null) return Result.ERR;
+            if (useReg.type != RegType.MAP) return Result.ERR;
+            if (!(useReg.getData() instanceof Map)) return Result.ERR;
+            Map map = (Map) useReg.getData();
+            if (map.cursor == null) map.cursor = map.new Cursor();
+
+            boolean found;
+            try {
+                found = map.cursor.next();
+            } catch (ConcurrentModificationException e) {
+                out.print("\nNSASM map changed since each\n");
+                return Result.ERR;
+            }
+            stateReg.setInt(found ? 1 : 0);
+            stateReg.type = RegType.INT;
+            stateReg.readOnly = false;
+            if (!found) return Result.OK;
+            if (funcList.func(OP_MOV).run(dst, map.cursor.key, null) == Result.ERR)
+                return Result.ERR;
+            if (src != null && funcList.func(OP_MOV).run(src, map.cursor.value, null) == Result.ERR)
+                return Result.ERR;
+            return Result.OK;
+        });
+
+        funcList.put("ord", (dst, src, ext) -> {
+            if (src != null) return Result.ERR;
+            if (dst == null) return Result.ERR;
+            if (dst.readOnly) return Result.ERR;
+            if (dst.type != RegType.MAP) return Result.ERR;
+            if (!(dst.getData() instanceof Map)) return Result.ERR;
+            if (dst.getData() instanceof OrderedMap) return Result.OK;
+            for (java.util.Map.Entry<Register, Register> i : ((Map) dst.getData()).entries())
+                if (!isOrderable(i.getKey())) return Result.ERR;
+            dst.setData(new OrderedMap((Map) dst.getData()));
+            return Result.OK;
+        });
+
+        funcList.put("rng", (dst, src, ext) -> {
+            if (src == null) return Result.ERR;
+            if (dst == null) return Result.ERR;
+            if (ext == null) return Result.ERR;
+            if (dst.readOnly) return Result.ERR;
+            OrderedMap map = orderedMap();
+            if (map == null) return Result.ERR;
+            if (!isOrderable(src) || !isOrderable(ext)) return Result.ERR;
+
+            OrderedMap res = new OrderedMap();
+            if (compareKeys(src, ext) <= 0) res.tree.putAll(map.tree.subMap(src, true, ext, true));
+            dst.type = RegType.MAP;
+            dst.readOnly = false;
+            dst.setData(res);
+            return Result.OK;
+        });
+
+        funcList.put("flr", (dst, src, ext) -> {
+            if (src == null) return Result.ERR;
+            if (dst == null) return Result.ERR;
+            OrderedMap map = orderedMap();
+            if (map == null || !isOrderable(src)) return Result.ERR;
+            Register key = map.tree.floorKey(src);
+            if (key == null) return Result.ERR;
+            return funcList.func(OP_MOV).run(dst, key, null);
+        });
+
+        funcList.put("cel", (dst, src, ext) -> {
+            if (src == null) return Result.ERR;
+            if (dst == null) return Result.ERR;
+            OrderedMap map = orderedMap();
+            if (map == null || !isOrderable(src)) return Result.ERR;
+            Register key = map.tree.ceilingKey(src);
+            if (key == null) return Result.ERR;
+            return funcList.func(OP_MOV).run(dst, key, null);
+        });
+
+        funcList.put("min", (dst, src, ext) -> {
+            if (src != null) return Result.ERR;
+            if (dst == null) return Result.ERR;
+            OrderedMap map = orderedMap();
+            if (map == null || map.tree.isEmpty()) return Result.ERR;
+            return funcList.func(OP_MOV).run(dst, map.tree.firstKey(), null);
+        });
+
+        funcList.put("max", (dst, src, ext) -> {
+            if (src != null) return Result.ERR;
+            if (dst == null) return Result.ERR;
+            OrderedMap map = orderedMap();
+            if (map == null || map.tree.isEmpty()) return Result.ERR;
+            return funcList.func(OP_MOV).run(dst, map.tree.lastKey(), null);
         });
 
         funcList.put("equ", (dst, src, ext) -> {
@@ -1722,8 +4118,8 @@ public class NSASM {
             Register reg = new Register();
             reg.type = RegType.INT;
             reg.readOnly = true;
-            reg.data = ((String)dst.data).equals((String)src.data) ? 0 : 1;
-            return funcList.get("mov").run(stateReg, reg, null);
+            reg.setData(((String)dst.getData()).equals((String)src.getData()) ? 0 : 1);
+            return funcList.func(OP_MOV).run(stateReg, reg, null);
         });
     }
 
@@ -1731,7 +4127,7 @@ public class NSASM {
         paramList.put("null", (reg) -> {
             Register res = new Register();
             res.type = RegType.STR;
-            res.data = "null";
+            res.setData("null");
             return res;
         });
         paramList.put("rand", (reg) -> {
@@ -1739,7 +4135,7 @@ public class NSASM {
                 Register res = new Register();
                 res.type = RegType.FLOAT;
                 res.readOnly = true;
-                res.data = (float) Math.random();
+                res.setData((float) Math.random());
                 return res;
             }
             return reg;
@@ -1748,7 +4144,7 @@ public class NSASM {
             if (reg == null) {
                 Register res = new Register();
                 res.type = RegType.CHAR;
-                if (funcList.get("in").run(res, null, null) != Result.OK)
+                if (funcList.func(OP_IN).run(res, null, null) != Result.OK)
                     return null;
                 res.readOnly = true;
                 return res;
@@ -1759,7 +4155,7 @@ public class NSASM {
             if (reg == null) {
                 Register res = new Register();
                 res.type = RegType.INT;
-                if (funcList.get("in").run(res, null, null) != Result.OK)
+                if (funcList.func(OP_IN).run(res, null, null) != Result.OK)
                     return null;
                 res.readOnly = true;
                 return res;
@@ -1770,7 +4166,7 @@ public class NSASM {
             if (reg == null) {
                 Register res = new Register();
                 res.type = RegType.FLOAT;
-                if (funcList.get("in").run(res, null, null) != Result.OK)
+                if (funcList.func(OP_IN).run(res, null, null) != Result.OK)
                     return null;
                 res.readOnly = true;
                 return res;
@@ -1781,7 +4177,7 @@ public class NSASM {
             if (reg == null) {
                 Register res = new Register();
                 res.type = RegType.STR;
-                if (funcList.get("in").run(res, null, null) != Result.OK)
+                if (funcList.func(OP_IN).run(res, null, null) != Result.OK)
                     return null;
                 res.readOnly = true;
                 return res;
@@ -1792,7 +4188,7 @@ public class NSASM {
             if (reg == null) {
                 Register res = new Register();
                 res.type = RegType.STR;
-                if (funcList.get("in").run(res, null, null) != Result.OK)
+                if (funcList.func(OP_IN).run(res, null, null) != Result.OK)
                     return null;
                 res.readOnly = true;
                 return res;
@@ -1801,12 +4197,12 @@ public class NSASM {
         });
         paramList.put("cout", (reg) -> {
             if (reg == null) return new Register();
-            funcList.get("out").run(reg, null, null);
+            funcList.func(OP_OUT).run(reg, null, null);
             return reg;
         });
         paramList.put("cprt", (reg) -> {
             if (reg == null) return new Register();
-            funcList.get("prt").run(reg, null, null);
+            funcList.func(OP_PRT).run(reg, null, null);
             return reg;
         });
         paramList.put("arg", (reg) -> {
@@ -1815,7 +4211,7 @@ public class NSASM {
                 if (argReg == null) {
                     res.type = RegType.STR;
                     res.readOnly = true;
-                    res.data = "null";
+                    res.setData("null");
                 } else {
                     res.copy(argReg);
                 }
@@ -1828,7 +4224,7 @@ public class NSASM {
                 Register res = new Register();
                 res.type = RegType.INT;
                 res.readOnly = true;
-                res.data = (int) Thread.currentThread().getId();
+                res.setData((int) Thread.currentThread().getId());
                 return res;
             }
             return reg;
@@ -15,8 +15,14 @@ public class Util {
         System.out.print(value);
     }
 
+    private static final Input console = new Input(System.in);
+
+    public static Input console() {
+        return console;
+    }
+
     public static String scan() {
-        return new Scanner(System.in).nextLine();
+        return console.readLine();
     }
 
     private static String cleanSymbol(String var, String symbol, String trash) {
@@ -592,6 +598,10 @@ public class Util {
     }
 
     public static void run(String path) {
+        run(path, true);
+    }
+
+    public static void run(String path, boolean bytecode) {
         if (path.endsWith(".nsb")) {
             binary(path);
             return;
@@ -601,6 +611,9 @@ public class Util {
         if (str == null) return;
 
         int heap = 64, stack = 32, regs = 16;
+        boolean literal = true;
+        int call = 65536;
+        int flush = 8192;
 
         String conf = getSegment(str, ".<conf>");
         if (conf == null) {
@@ -624,6 +637,15 @@ public class Util {
                         case "reg":
                             regs = Integer.valueOf(buf.split(" ")[1]);
                             break;
+                        case "literal":
+                            literal = Integer.valueOf(buf.split(" ")[1]) != 0;
+                            break;
+                        case "call":
+                            call = Integer.valueOf(buf.split(" ")[1]);
+                            break;
+                        case "flush":
+                            flush = Integer.valueOf(buf.split(" ")[1]);
+                            break;
                     }
                 }
             } catch (Exception e) {
@@ -635,6 +657,10 @@ public class Util {
 
         String[][] code = getSegments(str);
         NSASM nsasm = new NSASM(heap, stack, regs, code);
+        nsasm.setLiteralCache(literal);
+        nsasm.setCallLimit(call);
+        nsasm.getOutput().setFlush(false, flush, 100);
+        nsasm.setBytecode(bytecode);
         nsasm.run();
         print("\nNSASM running finished.\n\n");
     }
@@ -644,6 +670,9 @@ public class Util {
         if (str == null) return;
 
         int heap = 64, stack = 32, regs = 16;
+        boolean literal = true;
+        int call = 65536;
+        int flush = 8192;
 
         String conf = getSegment(str, ".<conf>");
         if (conf == null) {
@@ -667,6 +696,15 @@ public class Util {
                         case "reg":
                             regs = Integer.valueOf(buf.split(" ")[1]);
                             break;
+                        case "literal":
+                            literal = Integer.valueOf(buf.split(" ")[1]) != 0;
+                            break;
+                        case "call":
+                            call = Integer.valueOf(buf.split(" ")[1]);
+                            break;
+                        case "flush":
+                            flush = Integer.valueOf(buf.split(" ")[1]);
+                            break;
                     }
                 }
             } catch (Exception e) {
@@ -678,6 +716,9 @@ public class Util {
 
         String[][] code = getSegments(str);
         NSASM nsasm = new NSASM(heap, stack, regs, code);
+        nsasm.setLiteralCache(literal);
+        nsasm.setCallLimit(call);
+        nsasm.getOutput().setFlush(false, flush, 100);
         nsasm.run();
         print("\nNSASM running finished.\n\n");
     }
@@ -693,6 +734,7 @@ public class Util {
         while (true) {
             Util.print(lines + " >>> ");
             buf = scan();
+            if (buf == null) break;
             if (buf.length() == 0) {
                 lines += 1;
                 continue;